@@ -0,0 +1,26 @@
+package com.tophatdemon;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the GC profiler attached, so every result comes with its allocation rate.
+ * Takes the usual JMH command line options, e.g. a regex to pick benchmarks or -rf json to save the results.
+**/
+public class BenchmarkMain {
+    //Every benchmark generates its terrain from this seed, so runs measure the same grids
+    static final long SEED = 0x5EEDL;
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
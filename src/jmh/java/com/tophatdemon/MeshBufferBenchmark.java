@@ -0,0 +1,87 @@
+package com.tophatdemon;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Copying a polygonised chunk into the direct buffers that get handed to glBufferData.
+ * Mesh allocates these through LWJGL's MemoryUtil, which needs the native library, so plain
+ * direct ByteBuffers stand in for them here.
+**/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeshBufferBenchmark {
+    @Param({ "16", "32", "64" })
+    public int size;
+
+    @Param({ "false", "true" })
+    public boolean sharedVertices;
+
+    private final MeshData data = new MeshData();
+    private FloatBuffer stagingFloats;
+    private ByteBuffer stagingIndices;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Terrain terrain = new Terrain(size, size, size, 1.0f);
+        new TerrainGenerator(BenchmarkMain.SEED, size, 0.1f).Generate(terrain, 0, 0, 0, 0);
+        terrain.SetSharedVertices(sharedVertices);
+        terrain.polygonise(data);
+        stagingFloats = allocateFloats(data.getVertexCount() * 3);
+        stagingIndices = allocateBytes(indexBytes());
+    }
+
+    private static FloatBuffer allocateFloats(int count) {
+        return ByteBuffer.allocateDirect(count * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    private static ByteBuffer allocateBytes(int count) {
+        return ByteBuffer.allocateDirect(count).order(ByteOrder.nativeOrder());
+    }
+
+    private int indexBytes() {
+        return data.getIndexCount() * (data.hasWideIndices() ? Integer.BYTES : Short.BYTES);
+    }
+
+    //Indices go up as 16 bits each unless the mesh has too many vertices, like Mesh.setIndices()
+    private ByteBuffer putIndices(ByteBuffer dest) {
+        if (data.hasWideIndices()) {
+            dest.asIntBuffer().put(data.getIndices(), 0, data.getIndexCount());
+        } else {
+            dest.asShortBuffer().put(data.getShortIndices(), 0, data.getIndexCount());
+        }
+        return dest;
+    }
+
+    //One new buffer per attribute, the upload path from before interleaved, orphaned buffers, kept as a baseline
+    @Benchmark
+    public void freshBuffers(Blackhole bh) {
+        int floats = data.getVertexCount() * 3;
+        bh.consume(allocateFloats(floats).put(data.getPositions(), 0, floats).flip());
+        bh.consume(allocateFloats(floats).put(data.getColors(), 0, floats).flip());
+        bh.consume(allocateFloats(floats).put(data.getNormals(), 0, floats).flip());
+        bh.consume(putIndices(allocateBytes(indexBytes())));
+    }
+
+    //The same copies into buffers that are kept around, for the cost of the copies alone
+    @Benchmark
+    public void reusedBuffers(Blackhole bh) {
+        int floats = data.getVertexCount() * 3;
+        stagingFloats.clear();
+        bh.consume(stagingFloats.put(data.getPositions(), 0, floats).flip());
+        stagingFloats.clear();
+        bh.consume(stagingFloats.put(data.getColors(), 0, floats).flip());
+        stagingFloats.clear();
+        bh.consume(stagingFloats.put(data.getNormals(), 0, floats).flip());
+        bh.consume(putIndices(stagingIndices));
+    }
+}
@@ -0,0 +1,54 @@
+package com.tophatdemon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Simplifying a polygonised chunk, at a few error bounds. The fraction of triangles kept is printed
+ * when a trial starts. Each operation copies the full mesh back in first, which is also measured.
+**/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MeshSimplifierBenchmark {
+    @Param({ "32" })
+    public int size;
+
+    @Param({ "0.1", "0.25", "1.0" })
+    public float maxError;
+
+    private Terrain terrain;
+    private MeshSimplifier simplifier;
+    private final MeshData full = new MeshData();
+    private final MeshData data = new MeshData();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        terrain = new Terrain(size, size, size, 1.0f);
+        new TerrainGenerator(BenchmarkMain.SEED, size, 0.1f)
+            .WithDensityFunction(DensityFunctions.hills(BenchmarkMain.SEED, 0.05f))
+            .Generate(terrain, 0, -1, 0, 0);
+        terrain.SetSharedVertices(true);
+        terrain.polygonise(full);
+        simplifier = new MeshSimplifier(maxError);
+        System.out.printf("%nKept %.1f%% of %d triangles%n", simplify().getIndexCount() * 100.0f / full.getIndexCount(),
+            full.getIndexCount() / 3);
+    }
+
+    @Benchmark
+    public MeshData simplify() {
+        data.clear();
+        float[] p = full.getPositions(), n = full.getNormals(), c = full.getColors();
+        for (int v = 0; v < full.getVertexCount(); ++v) {
+            data.addVertex(p[v * 3], p[v * 3 + 1], p[v * 3 + 2], c[v * 3], c[v * 3 + 1], c[v * 3 + 2]);
+            data.addNormal(v, n[v * 3], n[v * 3 + 1], n[v * 3 + 2]);
+        }
+        for (int i = 0; i < full.getIndexCount(); ++i) data.addIndex(full.getIndex(i));
+        simplifier.simplify(data, terrain);
+        return data;
+    }
+}
@@ -0,0 +1,66 @@
+package com.tophatdemon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joml.SimplexNoise;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Filling a chunk's grid with noise, as the chunk workers do before polygonising,
+ * against calling JOML's simplex noise once per corner as the grid used to be filled
+**/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoiseFillBenchmark {
+    @Param({ "16", "32", "64" })
+    public int size;
+
+    private Terrain terrain;
+    private TerrainGenerator generator;
+    private TerrainGenerator graphGenerator;
+
+    @Setup
+    public void setup() {
+        terrain = new Terrain(size, size, size, 1.0f);
+        generator = new TerrainGenerator(BenchmarkMain.SEED, size, 0.1f);
+        graphGenerator = generator.WithDensityFunction(DensityFunctions.hills(BenchmarkMain.SEED, 0.05f));
+    }
+
+    @Benchmark
+    public DensityField perlinNoise() {
+        generator.Generate(terrain, 0, 0, 0, 0);
+        return terrain.GetDensity();
+    }
+
+    @Benchmark
+    public DensityField densityGraph() {
+        graphGenerator.Generate(terrain, 0, 0, 0, 0);
+        return terrain.GetDensity();
+    }
+
+    @Benchmark
+    public float[] batchedNoise() {
+        float[] values = terrain.GetDensity().getValues();
+        SimplexNoiseBatch.fill(values, size + 1, size + 1, size + 1, 0, 0, 0, 1, 17.0f, 0.1f);
+        return values;
+    }
+
+    @Benchmark
+    public float[] perCornerNoise() {
+        float[] values = terrain.GetDensity().getValues();
+        float scale = 0.1f, offset = 17.0f;
+        int i = 0;
+        for (int z = 0; z <= size; ++z) {
+            for (int y = 0; y <= size; ++y) {
+                for (int x = 0; x <= size; ++x, ++i) {
+                    values[i] = (SimplexNoise.noise((x + offset) * scale, (y + offset) * scale, (z + offset) * scale) + 1.0f) / 2.0f;
+                }
+            }
+        }
+        return values;
+    }
+}
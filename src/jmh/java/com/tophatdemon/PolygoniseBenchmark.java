@@ -0,0 +1,56 @@
+package com.tophatdemon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Marching cubes over a noise-filled grid. The grid is filled once per trial,
+ * so only the polygonisation itself is measured.
+**/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PolygoniseBenchmark {
+    @Param({ "16", "32", "64" })
+    public int size;
+
+    @Param({ "0.3", "0.5", "0.7" })
+    public float isoLevel;
+
+    @Param({ "false", "true" })
+    public boolean sharedVertices;
+
+    @Param({ "FACE", "GRADIENT" })
+    public NormalMode normalMode;
+
+    private Terrain terrain;
+    private final MeshData data = new MeshData();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        terrain = new Terrain(size, size, size, 1.0f);
+        new TerrainGenerator(BenchmarkMain.SEED, size, 0.1f).Generate(terrain, 0, 0, 0, 0);
+        terrain.SetIsoLevel(isoLevel);
+        terrain.SetSharedVertices(sharedVertices);
+        terrain.SetNormalMode(normalMode);
+        //Warm the buffers up to their final size, like the recycled ones on the chunk workers
+        terrain.polygonise(data);
+    }
+
+    @Benchmark
+    public MeshData polygonise() {
+        terrain.polygonise(data);
+        return data;
+    }
+
+    //The original per-cell object version, as a baseline
+    @Benchmark
+    public MeshData polygoniseReference() {
+        terrain.polygoniseReference(data);
+        return data;
+    }
+}
@@ -0,0 +1,48 @@
+package com.tophatdemon;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Marching cubes against surface nets over the same grids. The vertex and triangle counts of each
+ * are printed when a trial starts, so the size of the meshes can be compared along with the time.
+**/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SurfaceExtractorBenchmark {
+    @Param({ "32", "64" })
+    public int size;
+
+    @Param({ "MARCHING_CUBES", "MARCHING_CUBES_SHARED", "SURFACE_NETS" })
+    public String extractor;
+
+    //Plain noise, or the hills graph with its broad surfaces and caves
+    @Param({ "noise", "hills" })
+    public String field;
+
+    private Terrain terrain;
+    private final MeshData data = new MeshData();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        terrain = new Terrain(size, size, size, 1.0f);
+        TerrainGenerator generator = new TerrainGenerator(BenchmarkMain.SEED, size, 0.1f);
+        if (field.equals("hills")) generator = generator.WithDensityFunction(DensityFunctions.hills(BenchmarkMain.SEED, 0.05f));
+        generator.Generate(terrain, 0, -1, 0, 0);
+        terrain.SetSurfaceExtractor(extractor.equals("SURFACE_NETS") ? SurfaceExtractor.SURFACE_NETS : SurfaceExtractor.MARCHING_CUBES);
+        terrain.SetSharedVertices(!extractor.equals("MARCHING_CUBES"));
+        terrain.polygonise(data);
+        System.out.printf("%n%s on %s: %d vertices, %d triangles%n", extractor, field, data.getVertexCount(), data.getIndexCount() / 3);
+    }
+
+    @Benchmark
+    public MeshData extract() {
+        terrain.polygonise(data);
+        return data;
+    }
+}
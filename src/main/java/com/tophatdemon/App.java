@@ -1,7 +1,11 @@
 package com.tophatdemon;
 
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.List;
 
 import org.lwjgl.glfw.*;
 import org.lwjgl.opengl.*;
@@ -30,18 +34,39 @@ public class App
     private static final float FOV = 70.0f * (float)PI / 180.0f;
     private static final float CAMERA_NEAR = 0.1f;
     private static final float CAMERA_FAR = 1000.0f;
+    private static final int CHUNK_SIZE = 32;
+    private static final float GRID_SPACING = 2.0f;
+    private static final int VIEW_DISTANCE = 8;
+    //Distances in chunks past which chunks are meshed at half, quarter and eighth resolution
+    private static final int[] LOD_DISTANCES = { 2, 4, 6 };
+    //How far simplified meshes may stray from the surface, in grid cells of their level of detail
+    private static final float SIMPLIFY_ERROR = 0.25f;
+    private static final float EDIT_DISTANCE = 12.0f;
+    private static final float EDIT_RADIUS = 6.0f;
+    private static final float EDIT_STRENGTH = 2.0f;
+    //Where chunks are saved, so edits persist and revisited chunks load without being generated again
+    private static final String WORLD_DIRECTORY = "world";
+    //Generates chunks with GpuDensity instead of on the worker threads
+    private static final String GPU_DENSITY_ARG = "--gpu-density";
+    //Checks GpuDensity against the CPU on a few chunks at every level of detail, then exits.
+    //Run with LIBGL_ALWAYS_SOFTWARE=1 to check it under Mesa's llvmpipe, e.g. headless with xvfb-run.
+    //Exits with status 1 if anything doesn't match.
+    private static final String VERIFY_GPU_DENSITY_ARG = "--verify-gpu-density";
 
     private final Map<Integer, Boolean> keyDown = new HashMap<>();
     private final Map<Integer, Boolean> keyPress = new HashMap<>();
 
     private float globalTime;
     private long window;
+    private int exitStatus;
 
     private Vector3f cameraPosition = new Vector3f();
     private Vector3f cameraRotation = new Vector3f();
 
     public static void main(String[] args) {
-        new App().run(args);
+        App app = new App();
+        app.run(args);
+        if (app.exitStatus != 0) System.exit(app.exitStatus);
     }
 
     public boolean IsKeyDown(int keyCode) {
@@ -101,7 +126,7 @@ public class App
         glCullFace(GL_FRONT);
         glEnable(GL_DEPTH_TEST);
 
-        Shader testShader = Shader.LoadFromFile("/res/shaders/default.vert", "/res/shaders/default.frag");
+        Shader testShader = Shader.LoadFromFile("shaders/default.vert", "shaders/default.frag");
         Mesh testMesh = new Mesh();
         testMesh.setVertexPositions(
             -1.0f, -1.0f, 0.0f,
@@ -118,14 +143,51 @@ public class App
         testMesh.setIndices(
             0, 1, 2, 0, 2, 3
         );
-        Terrain terrain = new Terrain(64, 64, 64, 2.0f);
-        terrain.SetPerlinNoiseWeights(0.1f);
-        // terrain.SetPerlinNoiseWeights(1.0f);
-        // terrain.SetDebugWeights();
+        ChunkManager world = new ChunkManager(CHUNK_SIZE, GRID_SPACING, VIEW_DISTANCE);
+        world.SetNoiseScale(0.1f);
+        world.SetDensityStorage(DensityStorage.QUANTIZED_16);
+        world.SetLodDistances(LOD_DISTANCES);
+        MeshSimplifier simplifier = new MeshSimplifier(SIMPLIFY_ERROR);
+        world.SetSimplifier(simplifier, 1);
+        RegionStore store = null;
+        try {
+            store = new RegionStore(Paths.get(WORLD_DIRECTORY));
+            world.SetRegionStore(store, true);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            if (store != null) store.close();
+            store = null;
+        }
+
+        GpuDensity gpuDensity = null;
+        boolean verifyGpuDensity = Arrays.asList(args).contains(VERIFY_GPU_DENSITY_ARG);
+        if (verifyGpuDensity || Arrays.asList(args).contains(GPU_DENSITY_ARG)) {
+            try {
+                gpuDensity = new GpuDensity();
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+                System.err.println("Density can't be evaluated on the GPU, generating chunks on the CPU instead.");
+            }
+        }
+        if (verifyGpuDensity) {
+            boolean matches = gpuDensity != null;
+            for (int lod = 0; gpuDensity != null && lod <= LOD_DISTANCES.length; ++lod) {
+                for (int cx = -1; cx <= 1; ++cx) {
+                    //At the terrain's default iso level
+                    matches &= gpuDensity.Verify(world.GetGenerator(), cx, 0, 0, lod, 0.5f);
+                }
+            }
+            System.out.println(matches ? "GPU density matches the CPU." : "GPU density does NOT match the CPU.");
+            if (!matches) exitStatus = 1;
+            glfwSetWindowShouldClose(window, true);
+        } else if (gpuDensity != null) {
+            world.SetGpuDensity(gpuDensity);
+        }
 
         Matrix4f projection = new Matrix4f().setPerspective(FOV, ASPECT_RATIO, CAMERA_NEAR, CAMERA_FAR);
         Vector3f ambientLight = new Vector3f(0.25f, 0.25f, 0.25f);
         Vector3f sunDirection = new Vector3f(1.0f, 0.5f, 1.0f).normalize();
+        world.GetRenderer().SetLighting(ambientLight, sunDirection);
         
         glClearColor(0.0f, 0.0f, 0.5f, 0.0f);
         
@@ -174,6 +236,20 @@ public class App
             if (movement.lengthSquared() != 0.0f) {
                 cameraPosition.add(movement.normalize(deltaTime * 10.0f).mulPosition(rotMatrix));
             }
+            if (IsKeyPressed(GLFW_KEY_F3)) {
+                world.PrintDensityReport();
+            }
+            if (IsKeyPressed(GLFW_KEY_F5)) {
+                boolean nets = world.GetSurfaceExtractor() != SurfaceExtractor.SURFACE_NETS;
+                world.SetSurfaceExtractor(nets ? SurfaceExtractor.SURFACE_NETS : SurfaceExtractor.MARCHING_CUBES);
+                System.out.println(nets ? "Meshing with surface nets." : "Meshing with marching cubes.");
+            }
+            //Dig with E and build up with Q, a little way in front of the camera
+            if (IsKeyDown(GLFW_KEY_E) || IsKeyDown(GLFW_KEY_Q)) {
+                Vector3f target = new Vector3f(0.0f, 0.0f, -EDIT_DISTANCE).mulPosition(rotMatrix).add(cameraPosition);
+                float amount = (IsKeyDown(GLFW_KEY_E) ? -EDIT_STRENGTH : EDIT_STRENGTH) * deltaTime;
+                world.AddDensitySphere(target, EDIT_RADIUS, amount);
+            }
             //Render
 
             glClear(GL_COLOR_BUFFER_BIT | GL_DEPTH_BUFFER_BIT);
@@ -200,27 +276,25 @@ public class App
             testMesh.draw();
             testMesh.unbind();
 
-            model = new Matrix4f();
-
-            try {
-                testShader.setUniform(Shader.Uniform.VIEW_MATRIX, view);
-                testShader.setUniform(Shader.Uniform.MODEL_MATRIX, model);
-                testShader.setUniform(Shader.Uniform.AMBIENT_LIGHT, ambientLight);
-                testShader.setUniform(Shader.Uniform.SUN_DIRECTION, sunDirection);
-            } catch (Exception e) {
-                e.printStackTrace(System.err);
+            world.Update(cameraPosition);
+            List<Chunk> visibleChunks = world.Cull(view, projection);
+            world.GetRenderer().Render(visibleChunks, view, projection);
+            if (IsKeyPressed(GLFW_KEY_F4)) {
+                System.out.printf("Drew %d of %d chunks in %d draw calls, testing %d chunks individually.%n",
+                    world.GetRenderer().GetDrawnChunks(), world.GetChunks().size(), world.GetRenderer().GetDrawCalls(),
+                    world.GetCuller().GetTestedChunks());
+                System.out.printf("Simplified meshes kept %.1f%% of %d triangles.%n",
+                    simplifier.getReductionRatio() * 100.0f, simplifier.getTrianglesIn());
             }
 
-            Mesh terrainMesh = terrain.GetMesh();
-            terrainMesh.bind();
-            terrainMesh.draw();
-            terrainMesh.unbind();
-
             glfwSwapBuffers(window);
             keyPress.clear();
             glfwPollEvents();
         }
 
+        world.close();
+        if (gpuDensity != null) gpuDensity.close();
+        if (store != null) store.close();
         testMesh.close();
         testShader.close();
 
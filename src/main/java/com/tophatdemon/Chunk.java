@@ -0,0 +1,157 @@
+package com.tophatdemon;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * One fixed-size tile of the world, owned by a ChunkManager
+**/
+public class Chunk implements AutoCloseable {
+    public final int chunkX;
+    public final int chunkY;
+    public final int chunkZ;
+    //World-space position of the chunk's first grid corner
+    public final Vector3f origin;
+    public final Matrix4f modelMatrix;
+    protected final int size;
+    protected final float spacing;
+    //Replaced on a worker thread when the chunk is regenerated at a different level of detail
+    protected Terrain terrain;
+    //The chunk's share of the TerrainRenderer's buffers, or null if it has no triangles
+    protected TerrainRenderer.Slot meshSlot;
+    //Culling region the chunk belongs to, whose bounds need updating when the mesh changes
+    protected ChunkCuller.Region region;
+    //Chunk-space bounds of the uploaded mesh
+    protected final Vector3f boundsMin = new Vector3f();
+    protected final Vector3f boundsMax = new Vector3f();
+
+    //The fields below are only touched on the GL thread, see MeshingService
+    //Incremented whenever the grid changes, so meshes built from older data can be told apart
+    protected int version;
+    protected boolean meshing;
+    protected boolean remeshQueued;
+    protected boolean meshReady;
+    protected boolean closed;
+    //Level of detail the chunk is (or is being) generated at: its grid has size >> lod cells along each side
+    protected int lod;
+    //Faces capped to cover cracks next to chunks at another level of detail, see Terrain.SetBorderCaps()
+    protected int capFaces;
+    //Set once the chunk is edited, so it stays at full resolution and the edits aren't regenerated away
+    protected boolean pinned;
+    //Work to run before the next meshing job, held while the chunk is busy, see MeshingService.Submit()
+    protected MeshingService.Prepare queuedPrepare;
+    //Grid edits waiting to be applied by the next meshing job, so the grid is only ever touched by one thread
+    protected final List<Consumer<Terrain>> pendingEdits = new ArrayList<>();
+
+    public Chunk(int cx, int cy, int cz, int size, float spacing) {
+        this(cx, cy, cz, size, spacing, 0);
+    }
+
+    /**
+     * @param lod Level of detail; the grid is sampled at every 2^lod-th corner of the full resolution grid
+    **/
+    public Chunk(int cx, int cy, int cz, int size, float spacing, int lod) {
+        chunkX = cx;
+        chunkY = cy;
+        chunkZ = cz;
+        this.size = size;
+        this.spacing = spacing;
+        this.lod = lod;
+        origin = new Vector3f(cx * size * spacing, cy * size * spacing, cz * size * spacing);
+        modelMatrix = new Matrix4f().translation(origin);
+        terrain = createTerrain(lod);
+    }
+
+    private Terrain createTerrain(int lod) {
+        Terrain terrain = new Terrain(size >> lod, size >> lod, size >> lod, spacing * (1 << lod));
+        terrain.SetMeshOffset(0.0f, 0.0f, 0.0f);
+        terrain.SetSharedVertices(true);
+        return terrain;
+    }
+
+    /**
+     * Replaces the grid with one at the given level of detail if it isn't at that resolution already.
+     * Must be called from the thread that owns the grid, i.e. in a meshing job.
+     * @return The chunk's terrain
+    **/
+    protected Terrain ensureResolution(int lod) {
+        if (terrain.gridCols != size >> lod) {
+            Terrain resampled = createTerrain(lod);
+            resampled.SetDensityStorage(terrain.densityStorage);
+            resampled.SetIsoLevel(terrain.isoLevel);
+            resampled.SetNormalMode(terrain.normalMode);
+            resampled.SetSurfaceExtractor(terrain.surfaceExtractor);
+            terrain = resampled;
+        }
+        return terrain;
+    }
+
+    public int GetLod() {
+        return lod;
+    }
+
+    public Terrain GetTerrain() {
+        return terrain;
+    }
+
+    /**
+     * Whether a mesh has been uploaded for this chunk. The mesh may lag behind the grid while it is being rebuilt.
+    **/
+    public boolean IsMeshReady() {
+        return meshReady;
+    }
+
+    /**
+     * Queues an edit of this chunk's grid. It is applied on a worker thread by the next meshing job.
+     * Must be called from the GL thread.
+    **/
+    public void QueueEdit(Consumer<Terrain> edit) {
+        pendingEdits.add(edit);
+        ++version;
+    }
+
+    //Takes the queued edits as a single task, or returns null if there are none
+    protected Runnable takePendingEdits() {
+        if (pendingEdits.isEmpty()) return null;
+        List<Consumer<Terrain>> edits = new ArrayList<>(pendingEdits);
+        pendingEdits.clear();
+        return () -> {
+            for (Consumer<Terrain> edit : edits) edit.accept(terrain);
+        };
+    }
+
+    /**
+     * Replaces the chunk's mesh with newly polygonised data. Must be called from the GL thread.
+    **/
+    public void UploadMesh(MeshData data, TerrainRenderer renderer) {
+        renderer.Upload(this, data);
+        data.getBoundsMin(boundsMin);
+        data.getBoundsMax(boundsMax);
+        if (region != null) region.boundsDirty = true;
+        meshReady = true;
+    }
+
+    /**
+     * Bounds of the uploaded mesh, relative to the chunk origin. Empty (min greater than max) if the mesh has no vertices.
+    **/
+    public Vector3f GetBoundsMin() {
+        return boundsMin;
+    }
+
+    public Vector3f GetBoundsMax() {
+        return boundsMax;
+    }
+
+    /**
+     * Marks the chunk as unloaded, so meshes still being built for it are dropped.
+     * Its mesh must be removed from the renderer separately.
+    **/
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
@@ -0,0 +1,116 @@
+package com.tophatdemon;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.joml.FrustumIntersection;
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Finds the chunks whose meshes are within the view frustum.
+ * Chunks are grouped into regions of REGION_SIZE^3 chunks, each with the union of its chunks' bounds.
+ * A region entirely outside the frustum skips all of its chunks at once, and a region entirely inside it
+ * accepts them all without testing them one by one, so the work mostly depends on what is near the edges of the view.
+ * Must be used from the GL thread.
+**/
+public class ChunkCuller {
+    public static final int REGION_SHIFT = 2;
+    public static final int REGION_SIZE = 1 << REGION_SHIFT;
+
+    protected static class Region {
+        final List<Chunk> chunks = new ArrayList<>();
+        //World-space union of the bounds of the chunks' meshes; min is greater than max if none have triangles
+        final Vector3f min = new Vector3f();
+        final Vector3f max = new Vector3f();
+        boolean boundsDirty = true;
+
+        void updateBounds() {
+            min.set(Float.POSITIVE_INFINITY);
+            max.set(Float.NEGATIVE_INFINITY);
+            for (Chunk chunk : chunks) {
+                if (chunk.meshSlot == null) continue;
+                min.x = Math.min(min.x, chunk.origin.x + chunk.boundsMin.x);
+                min.y = Math.min(min.y, chunk.origin.y + chunk.boundsMin.y);
+                min.z = Math.min(min.z, chunk.origin.z + chunk.boundsMin.z);
+                max.x = Math.max(max.x, chunk.origin.x + chunk.boundsMax.x);
+                max.y = Math.max(max.y, chunk.origin.y + chunk.boundsMax.y);
+                max.z = Math.max(max.z, chunk.origin.z + chunk.boundsMax.z);
+            }
+            boundsDirty = false;
+        }
+    }
+
+    protected final Map<Long, Region> regions = new HashMap<>();
+    protected final FrustumIntersection frustum = new FrustumIntersection();
+    private final Matrix4f viewProjection = new Matrix4f();
+    private final List<Chunk> visible = new ArrayList<>();
+    private int testedChunks;
+
+    public void Add(Chunk chunk) {
+        long key = ChunkManager.chunkKey(chunk.chunkX >> REGION_SHIFT, chunk.chunkY >> REGION_SHIFT, chunk.chunkZ >> REGION_SHIFT);
+        Region region = regions.get(key);
+        if (region == null) {
+            region = new Region();
+            regions.put(key, region);
+        }
+        region.chunks.add(chunk);
+        region.boundsDirty = true;
+        chunk.region = region;
+    }
+
+    public void Remove(Chunk chunk) {
+        Region region = chunk.region;
+        if (region == null) return;
+        region.chunks.remove(chunk);
+        region.boundsDirty = true;
+        chunk.region = null;
+        if (region.chunks.isEmpty()) {
+            regions.remove(ChunkManager.chunkKey(chunk.chunkX >> REGION_SHIFT, chunk.chunkY >> REGION_SHIFT, chunk.chunkZ >> REGION_SHIFT));
+        }
+    }
+
+    /**
+     * Returns the chunks with meshes that may be visible. The list is reused by the next call.
+    **/
+    public List<Chunk> Cull(Matrix4f view, Matrix4f projection) {
+        frustum.set(projection.mul(view, viewProjection));
+        visible.clear();
+        testedChunks = 0;
+        for (Region region : regions.values()) {
+            if (region.boundsDirty) region.updateBounds();
+            if (region.min.x > region.max.x) continue;
+
+            int result = frustum.intersectAab(region.min.x, region.min.y, region.min.z, region.max.x, region.max.y, region.max.z);
+            if (result == FrustumIntersection.INSIDE) {
+                for (Chunk chunk : region.chunks) {
+                    if (chunk.meshSlot != null) visible.add(chunk);
+                }
+            } else if (result == FrustumIntersection.INTERSECT) {
+                for (Chunk chunk : region.chunks) {
+                    if (chunk.meshSlot == null) continue;
+                    ++testedChunks;
+                    float x = chunk.origin.x, y = chunk.origin.y, z = chunk.origin.z;
+                    if (frustum.testAab(x + chunk.boundsMin.x, y + chunk.boundsMin.y, z + chunk.boundsMin.z,
+                            x + chunk.boundsMax.x, y + chunk.boundsMax.y, z + chunk.boundsMax.z)) {
+                        visible.add(chunk);
+                    }
+                }
+            }
+        }
+        return visible;
+    }
+
+    /**
+     * Number of chunks tested one by one in the last Cull(), because their region straddled the frustum
+    **/
+    public int GetTestedChunks() {
+        return testedChunks;
+    }
+
+    public int GetRegionCount() {
+        return regions.size();
+    }
+}
@@ -0,0 +1,721 @@
+package com.tophatdemon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Consumer;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+
+/**
+ * Tiles the world into fixed-size Terrain chunks and keeps the ones around the camera loaded.
+ * Chunks sample the same noise field at their global grid coordinates, so the corners on a border
+ * between two chunks get identical weights and the meshes line up without seams.
+ * Generation and meshing run on a MeshingService, and the meshes are drawn by a TerrainRenderer.
+ * With a RegionStore, chunks are saved whenever they're meshed and loaded back instead of being generated again.
+ * The manager must be created and updated on the GL thread.
+**/
+public class ChunkManager implements AutoCloseable {
+    protected final int chunkSize;
+    protected final float gridSpacing;
+    protected final int viewDistance;
+    protected final Map<Long, Chunk> chunks = new HashMap<>();
+    protected final TerrainRenderer renderer;
+    protected final MeshingService meshing;
+    protected final ChunkCuller culler = new ChunkCuller();
+
+    //Replaced when settings change, but never mutated, so workers can keep using the one they started with
+    protected volatile TerrainGenerator generator;
+    //Storage mode for the grids of idle chunks, or null to keep them as floats
+    protected DensityStorage densityStorage;
+    protected NormalMode normalMode = NormalMode.FACE;
+    //Given to every chunk's terrain; kept here so the GL thread never has to read it from a grid a worker owns
+    protected float isoLevel = 0.5f;
+    protected SurfaceExtractor surfaceExtractor = SurfaceExtractor.MARCHING_CUBES;
+    //Limits how many chunks are queued for generation at once, so the nearest ones are always handled first
+    protected int maxPendingChunks = 2 * Runtime.getRuntime().availableProcessors();
+    //Chunks further than lodDistances[i] chunks from the camera are generated at level of detail i + 1 or coarser.
+    //A chunk can only be halved as many times as its size is divisible by two.
+    protected int[] lodDistances = new int[0];
+    //Where meshed chunks are saved and loaded from, or null to always generate them
+    protected RegionStore store;
+    protected boolean storeMeshes;
+    protected GpuDensity gpuDensity;
+
+    //Flags in the header of a stored chunk entry
+    private static final int STORED_PINNED = 1, STORED_MESH = 2, STORED_GRADIENT_NORMALS = 4, STORED_SURFACE_NETS = 8;
+    private static final int STORED_HEADER_BYTES = 4;
+    //Per-worker buffers for encoding chunk entries
+    private final ThreadLocal<ByteBuffer> entryBuffers = new ThreadLocal<>();
+
+    //Chunk offsets within the view distance, sorted nearest first, as (x, y, z) triples
+    private final int[] loadOrder;
+    private int lastCenterX = Integer.MIN_VALUE, lastCenterY, lastCenterZ;
+    private boolean allLoaded;
+    //Whether some chunks haven't been regenerated at their new level of detail yet
+    private boolean lodsChanged;
+    //Chunks whose grids are being evaluated on the GPU, oldest first. They count as meshing until the grid is read
+    //back and they're submitted, so edits and remeshes made meanwhile queue up behind it.
+    private final List<GpuJob> gpuJobs = new ArrayList<>();
+
+    private static class GpuJob {
+        final Chunk chunk;
+        final int lod;
+        final int capFaces;
+        final GpuDensity.Request request;
+
+        GpuJob(Chunk chunk, int lod, int capFaces, GpuDensity.Request request) {
+            this.chunk = chunk;
+            this.lod = lod;
+            this.capFaces = capFaces;
+            this.request = request;
+        }
+    }
+
+    /**
+     * Creates a world with a seed taken from the clock
+    **/
+    public ChunkManager(int chunkSize, float spacing, int viewDistance) {
+        this(chunkSize, spacing, viewDistance, System.nanoTime());
+    }
+
+    /**
+     * @param chunkSize Number of grid cells along each side of a chunk
+     * @param spacing World-space size of a grid cell
+     * @param viewDistance Radius, in chunks, around the camera to keep loaded
+     * @param seed Picks the world; the same seed and settings always generate the same chunks
+    **/
+    public ChunkManager(int chunkSize, float spacing, int viewDistance, long seed) {
+        this.chunkSize = chunkSize;
+        this.gridSpacing = spacing;
+        this.viewDistance = viewDistance;
+        renderer = new TerrainRenderer(chunkSize * spacing);
+        meshing = new MeshingService(renderer);
+
+        generator = new TerrainGenerator(seed, chunkSize, 0.1f);
+
+        List<int[]> offsets = new ArrayList<>();
+        for (int z = -viewDistance; z <= viewDistance; ++z) {
+            for (int y = -viewDistance; y <= viewDistance; ++y) {
+                for (int x = -viewDistance; x <= viewDistance; ++x) {
+                    if (x * x + y * y + z * z <= viewDistance * viewDistance) {
+                        offsets.add(new int[] { x, y, z });
+                    }
+                }
+            }
+        }
+        offsets.sort((a, b) -> Integer.compare(a[0] * a[0] + a[1] * a[1] + a[2] * a[2], b[0] * b[0] + b[1] * b[1] + b[2] * b[2]));
+        loadOrder = new int[offsets.size() * 3];
+        for (int i = 0; i < offsets.size(); ++i) {
+            System.arraycopy(offsets.get(i), 0, loadOrder, i * 3, 3);
+        }
+    }
+
+    public void SetNoiseScale(float scale) {
+        generator = generator.WithNoiseScale(scale);
+    }
+
+    /**
+     * Shapes the terrain with a density function instead of a single octave of noise, such as
+     * DensityFunctions.hills(GetGenerator().GetSeed(), ...). Must be called before the first Update().
+     * The shape isn't recorded in a RegionStore, so a stored world has to be reopened with the same one.
+    **/
+    public void SetDensityFunction(DensityFunction function) {
+        generator = generator.WithDensityFunction(function);
+    }
+
+    public TerrainGenerator GetGenerator() {
+        return generator;
+    }
+
+    /**
+     * Sets the distances, in chunks, past which chunks are generated at successively coarser levels of detail.
+     * Each level halves the grid resolution of the chunk; levels past the point where a chunk would have a
+     * single cell are ignored. With no distances, every chunk is generated at full resolution.
+    **/
+    public void SetLodDistances(int ...distances) {
+        int maxLod = Integer.numberOfTrailingZeros(chunkSize);
+        lodDistances = Arrays.copyOf(distances, Math.min(distances.length, maxLod));
+        Arrays.sort(lodDistances);
+        //Pick the new levels up on the next update
+        lastCenterX = Integer.MIN_VALUE;
+    }
+
+    public void SetMaxPendingChunks(int count) {
+        maxPendingChunks = Math.max(1, count);
+    }
+
+    /**
+     * Sets how the grids of chunks are packed once they've been meshed. Loaded chunks are remeshed,
+     * and packed with the new mode afterwards.
+    **/
+    public void SetDensityStorage(DensityStorage storage) {
+        if (storage == densityStorage) return;
+        densityStorage = storage;
+        for (Chunk chunk : chunks.values()) {
+            chunk.QueueEdit((terrain) -> terrain.SetDensityStorage(storage));
+            meshing.Submit(chunk, null);
+        }
+    }
+
+    /**
+     * Saves chunks to the store whenever they are meshed, and loads them back from it instead of generating them.
+     * If the store already holds a world, its seed and noise settings are adopted; otherwise the current ones are saved to it.
+     * Must be called before the first Update(), after setting the noise scale. The store stays owned by the caller.
+     * @param storeMeshes Whether to save the meshes along with the grids, so reloaded chunks don't need polygonising
+     * @throws IOException If the store can't be read, or holds a world with another chunk size or grid spacing
+    **/
+    public void SetRegionStore(RegionStore store, boolean storeMeshes) throws IOException {
+        Properties metadata = store.ReadMetadata();
+        if (metadata == null) {
+            metadata = new Properties();
+            metadata.setProperty("chunkSize", Integer.toString(chunkSize));
+            metadata.setProperty("gridSpacing", Float.toString(gridSpacing));
+            metadata.setProperty("seed", Long.toString(generator.GetSeed()));
+            metadata.setProperty("noiseScale", Float.toString(generator.GetNoiseScale()));
+            store.WriteMetadata(metadata);
+        } else {
+            try {
+                if (Integer.parseInt(metadata.getProperty("chunkSize")) != chunkSize
+                    || Float.parseFloat(metadata.getProperty("gridSpacing")) != gridSpacing) {
+                    throw new IOException("The stored world has a different chunk size or grid spacing");
+                }
+                generator = new TerrainGenerator(Long.parseLong(metadata.getProperty("seed")), chunkSize,
+                    Float.parseFloat(metadata.getProperty("noiseScale")));
+            } catch (NullPointerException | NumberFormatException e) {
+                throw new IOException("The stored world's metadata is incomplete", e);
+            }
+        }
+        this.store = store;
+        this.storeMeshes = storeMeshes;
+        meshing.SetMeshedListener(this::saveChunk);
+    }
+
+    /**
+     * Evaluates the grids of chunks that have to be generated on the GPU instead of the worker threads,
+     * or stops if null. Only single octave noise can be; with a density function set, chunks are still
+     * generated on the workers. The passes are issued on the GL thread during Update() and read back on a later
+     * one once they're done. Grids still in flight on the previous one are generated on the workers instead.
+    **/
+    public void SetGpuDensity(GpuDensity gpu) {
+        if (gpu == gpuDensity) return;
+        for (GpuJob job : gpuJobs) {
+            gpuDensity.Cancel(job.request);
+            submitGpuJob(job, null);
+        }
+        gpuJobs.clear();
+        gpuDensity = gpu;
+    }
+
+    /**
+     * Sets the weight at which chunk grids turn solid, clamped to [0, 1]. Loaded chunks are remeshed with it.
+    **/
+    public void SetIsoLevel(float level) {
+        level = Math.max(0.0f, Math.min(1.0f, level));
+        if (level == isoLevel) return;
+        isoLevel = level;
+        final float newLevel = level;
+        for (Chunk chunk : chunks.values()) {
+            chunk.QueueEdit((terrain) -> terrain.SetIsoLevel(newLevel));
+            meshing.Submit(chunk, null);
+        }
+    }
+
+    /**
+     * Sets how the normals of chunk meshes are computed. Loaded chunks are remeshed with the new mode.
+    **/
+    public void SetNormalMode(NormalMode mode) {
+        if (mode == normalMode) return;
+        normalMode = mode;
+        for (Chunk chunk : chunks.values()) {
+            chunk.QueueEdit((terrain) -> terrain.SetNormalMode(mode));
+            meshing.Submit(chunk, null);
+        }
+    }
+
+    /**
+     * Sets how chunk grids are turned into meshes. Loaded chunks are remeshed with the new extractor.
+     * Meshes are only kept in the region store for the built-in extractors.
+    **/
+    public void SetSurfaceExtractor(SurfaceExtractor extractor) {
+        if (extractor == surfaceExtractor) return;
+        surfaceExtractor = extractor;
+        for (Chunk chunk : chunks.values()) {
+            chunk.QueueEdit((terrain) -> terrain.SetSurfaceExtractor(extractor));
+            meshing.Submit(chunk, null);
+        }
+    }
+
+    public SurfaceExtractor GetSurfaceExtractor() {
+        return surfaceExtractor;
+    }
+
+    /**
+     * Simplifies the meshes of chunks at or beyond the given level of detail, see MeshingService.SetSimplifier().
+     * Loaded chunks that are affected are remeshed.
+     * @param simplifier The simplifier to use, or null to stop simplifying
+    **/
+    public void SetSimplifier(MeshSimplifier simplifier, int fromLod) {
+        meshing.SetSimplifier(simplifier, fromLod);
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.lod >= fromLod) meshing.Submit(chunk, null);
+        }
+    }
+
+    /**
+     * Returns the loaded chunks whose meshes are within the view frustum. The list is reused by the next call.
+    **/
+    public List<Chunk> Cull(Matrix4f view, Matrix4f projection) {
+        return culler.Cull(view, projection);
+    }
+
+    public ChunkCuller GetCuller() {
+        return culler;
+    }
+
+    public TerrainRenderer GetRenderer() {
+        return renderer;
+    }
+
+    public MeshingService GetMeshingService() {
+        return meshing;
+    }
+
+    public float GetChunkWorldSize() {
+        return chunkSize * gridSpacing;
+    }
+
+    /**
+     * Loads missing chunks within the view distance of the camera (nearest first), unloads those that fell out of it
+     * and uploads meshes that finished since the last update.
+    **/
+    public void Update(Vector3f cameraPosition) {
+        meshing.UploadFinished();
+        pollGpuJobs();
+
+        float worldSize = GetChunkWorldSize();
+        int centerX = (int) Math.floor(cameraPosition.x / worldSize);
+        int centerY = (int) Math.floor(cameraPosition.y / worldSize);
+        int centerZ = (int) Math.floor(cameraPosition.z / worldSize);
+
+        if (centerX != lastCenterX || centerY != lastCenterY || centerZ != lastCenterZ) {
+            lastCenterX = centerX; lastCenterY = centerY; lastCenterZ = centerZ;
+            allLoaded = false;
+            unloadDistant(centerX, centerY, centerZ);
+            lodsChanged = lodDistances.length > 0;
+        }
+        if (lodsChanged) updateLods();
+        if (allLoaded) return;
+
+        for (int i = 0; i < loadOrder.length; i += 3) {
+            int cx = centerX + loadOrder[i], cy = centerY + loadOrder[i+1], cz = centerZ + loadOrder[i+2];
+            long key = chunkKey(cx, cy, cz);
+            if (chunks.containsKey(key)) continue;
+            if (getPendingCount() >= maxPendingChunks) return;
+            Chunk chunk = loadChunk(cx, cy, cz);
+            if (chunk == null) return;
+            chunks.put(key, chunk);
+            culler.Add(chunk);
+        }
+        allLoaded = true;
+    }
+
+    private void unloadDistant(int centerX, int centerY, int centerZ) {
+        //Keep one extra ring loaded so moving back and forth over a border doesn't thrash chunks
+        int limit = (viewDistance + 1) * (viewDistance + 1);
+        Iterator<Chunk> iter = chunks.values().iterator();
+        while (iter.hasNext()) {
+            Chunk chunk = iter.next();
+            int dx = chunk.chunkX - centerX, dy = chunk.chunkY - centerY, dz = chunk.chunkZ - centerZ;
+            if (dx * dx + dy * dy + dz * dz > limit) {
+                renderer.Remove(chunk);
+                culler.Remove(chunk);
+                chunk.close();
+                iter.remove();
+            }
+        }
+    }
+
+    //Returns null if the chunk should come from the GPU but every request slot is in flight, to be tried again later
+    protected Chunk loadChunk(int cx, int cy, int cz) {
+        int storedFlags = readStoredFlags(cx, cy, cz);
+        boolean onGpu = storedFlags == -1 && usesGpu();
+        if (onGpu && !gpuDensity.HasFreeSlot()) return null;
+        boolean pinned = storedFlags != -1 && (storedFlags & STORED_PINNED) != 0;
+        int lod = pinned ? 0 : lodAt(cx, cy, cz);
+        Chunk chunk = new Chunk(cx, cy, cz, chunkSize, gridSpacing, lod);
+        chunk.GetTerrain().SetDensityStorage(densityStorage);
+        chunk.GetTerrain().SetIsoLevel(isoLevel);
+        chunk.GetTerrain().SetNormalMode(normalMode);
+        chunk.GetTerrain().SetSurfaceExtractor(surfaceExtractor);
+        chunk.pinned = pinned;
+        chunk.capFaces = capFacesAt(cx, cy, cz, lod);
+        final int capFaces = chunk.capFaces;
+        if (onGpu) {
+            startGpuJob(chunk, lod, capFaces);
+        } else {
+            meshing.Submit(chunk, (out) -> prepareChunk(chunk, lod, capFaces, null, out));
+        }
+        if (pinned && lod != lodAt(cx, cy, cz)) {
+            //The neighbors were capped against the level the chunk would have had
+            chunks.put(chunkKey(cx, cy, cz), chunk);
+            updateCaps(cx - 1, cy, cz); updateCaps(cx + 1, cy, cz);
+            updateCaps(cx, cy - 1, cz); updateCaps(cx, cy + 1, cz);
+            updateCaps(cx, cy, cz - 1); updateCaps(cx, cy, cz + 1);
+        }
+        return chunk;
+    }
+
+    //Flags of the chunk's stored entry, or -1 if it has none. They are kept as the entry's tag, so only the
+    //region's table is read, once per region, instead of the entry itself.
+    private int readStoredFlags(int cx, int cy, int cz) {
+        if (store == null) return -1;
+        try {
+            return store.ReadTag(cx, cy, cz);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+            return -1;
+        }
+    }
+
+    //Runs on a worker thread. Fills the grid from the store if it holds the chunk at this level of detail,
+    //then from the grid evaluated on the GPU if there is one, and otherwise generates it.
+    //Returns true if the stored mesh was read into out as well.
+    protected boolean prepareChunk(Chunk chunk, int lod, int capFaces, GpuDensity.Grid gpuGrid, MeshData out) {
+        Terrain terrain = chunk.ensureResolution(lod);
+        terrain.SetBorderCaps(capFaces);
+        if (store != null) {
+            boolean[] meshed = new boolean[1];
+            try {
+                if (store.Read(chunk.chunkX, chunk.chunkY, chunk.chunkZ,
+                        (data) -> readStoredChunk(terrain, lod, capFaces, data, out, meshed))) {
+                    //Edits the neighbors got before they were stored aren't in the generated halo, so gradient
+                    //normals can still differ slightly across the border where they were made
+                    generator.GenerateHalo(terrain, chunk.chunkX, chunk.chunkY, chunk.chunkZ, lod);
+                    return meshed[0];
+                }
+            } catch (IOException | RuntimeException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+        if (gpuGrid != null) {
+            gpuGrid.applyTo(terrain);
+            generator.GenerateHalo(terrain, chunk.chunkX, chunk.chunkY, chunk.chunkZ, lod);
+        } else {
+            generateChunk(chunk, lod);
+        }
+        return false;
+    }
+
+    //Whether chunks that aren't stored get their grids from the GPU: it's on and the generator has no density function
+    private boolean usesGpu() {
+        return gpuDensity != null && generator.densityFunction == null;
+    }
+
+    //Runs on the GL thread. Issues the chunk's grid at the given level of detail on the GPU, which must have a free
+    //slot, and holds the chunk busy until pollGpuJobs() hands it to the workers.
+    private void startGpuJob(Chunk chunk, int lod, int capFaces) {
+        GpuDensity.Request request = gpuDensity.Submit(generator, chunk.chunkX, chunk.chunkY, chunk.chunkZ, lod,
+            isoLevel, densityStorage);
+        chunk.meshing = true;
+        gpuJobs.add(new GpuJob(chunk, lod, capFaces, request));
+    }
+
+    //Runs on the GL thread. Submits the chunks whose grids the GPU has finished, without waiting on the rest.
+    private void pollGpuJobs() {
+        Iterator<GpuJob> iter = gpuJobs.iterator();
+        while (iter.hasNext()) {
+            GpuJob job = iter.next();
+            GpuDensity.Grid grid = gpuDensity.Poll(job.request);
+            if (grid == null) continue;
+            iter.remove();
+            submitGpuJob(job, grid);
+        }
+    }
+
+    //Hands a chunk that was held for the GPU to the workers, which generate its grid themselves if it's null
+    private void submitGpuJob(GpuJob job, GpuDensity.Grid grid) {
+        Chunk chunk = job.chunk;
+        chunk.meshing = false;
+        //Unloaded while it was on the GPU
+        if (chunk.closed) return;
+        if (chunk.queuedPrepare != null) {
+            //Its level of detail changed meanwhile, and the work queued for that replaces the grid
+            meshing.Submit(chunk, null);
+        } else {
+            meshing.Submit(chunk, (out) -> prepareChunk(chunk, job.lod, job.capFaces, grid, out));
+        }
+    }
+
+    //Chunks waiting on the GPU or the workers
+    private int getPendingCount() {
+        return meshing.GetPendingCount() + gpuJobs.size();
+    }
+
+    //Runs on a worker thread
+    protected void generateChunk(Chunk chunk, int lod) {
+        generator.Generate(chunk.GetTerrain(), chunk.chunkX, chunk.chunkY, chunk.chunkZ, lod);
+    }
+
+    //Reads a stored chunk entry if it was saved at the given level of detail.
+    //The mesh is only used if its caps, normals and extractor match what the chunk needs now.
+    private static boolean readStoredChunk(Terrain terrain, int lod, int capFaces, ByteBuffer data, MeshData out, boolean[] meshed)
+            throws IOException {
+        int storedLod = data.get(), storedCaps = data.get(), flags = data.get();
+        data.get();
+        if (storedLod != lod) return false;
+        terrain.SetPackedDensity(PackedDensity.readFrom(data, terrain.gridCols + 1, terrain.gridLayers + 1, terrain.gridRows + 1));
+        boolean gradientNormals = terrain.normalMode == NormalMode.GRADIENT;
+        if ((flags & STORED_MESH) != 0 && storedCaps == capFaces && ((flags & STORED_GRADIENT_NORMALS) != 0) == gradientNormals
+                && storedExtractorFlags(terrain) == (flags & STORED_SURFACE_NETS)) {
+            out.readFrom(data);
+            meshed[0] = true;
+        }
+        return true;
+    }
+
+    //Runs on a worker thread after a chunk is meshed, see MeshingService.SetMeshedListener()
+    private void saveChunk(Chunk chunk, MeshData mesh) {
+        Terrain terrain = chunk.GetTerrain();
+        PackedDensity packed = terrain.GetPackedDensity();
+        boolean withMesh = storeMeshes && storedExtractorFlags(terrain) >= 0;
+        int flags = (chunk.pinned ? STORED_PINNED : 0) | (withMesh ? STORED_MESH : 0)
+            | (terrain.normalMode == NormalMode.GRADIENT ? STORED_GRADIENT_NORMALS : 0)
+            | (withMesh ? storedExtractorFlags(terrain) : 0);
+        int size = STORED_HEADER_BYTES + packed.getSerializedSize() + (withMesh ? mesh.getSerializedSize() : 0);
+
+        ByteBuffer entry = entryBuffers.get();
+        if (entry == null || entry.capacity() < size) {
+            entry = ByteBuffer.allocate(size + size / 2).order(RegionStore.BYTE_ORDER);
+            entryBuffers.set(entry);
+        }
+        entry.clear();
+        entry.put((byte) Integer.numberOfTrailingZeros(chunkSize / terrain.gridCols)).put((byte) terrain.capFaces);
+        entry.put((byte) flags).put((byte) 0);
+        packed.writeTo(entry);
+        if (withMesh) mesh.writeTo(entry);
+        entry.flip();
+        try {
+            store.Write(chunk.chunkX, chunk.chunkY, chunk.chunkZ, entry, flags);
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+    }
+
+    //Flags telling apart meshes from the built-in extractors, or -1 for others, whose meshes aren't stored
+    private static int storedExtractorFlags(Terrain terrain) {
+        if (terrain.surfaceExtractor == SurfaceExtractor.MARCHING_CUBES) return 0;
+        if (terrain.surfaceExtractor == SurfaceExtractor.SURFACE_NETS) return STORED_SURFACE_NETS;
+        return -1;
+    }
+
+    /**
+     * Level of detail a chunk should have with the camera in the current center chunk
+    **/
+    protected int lodAt(int cx, int cy, int cz) {
+        Chunk chunk = chunks.get(chunkKey(cx, cy, cz));
+        if (chunk != null && chunk.pinned) return 0;
+        int dx = cx - lastCenterX, dy = cy - lastCenterY, dz = cz - lastCenterZ;
+        int distanceSquared = dx * dx + dy * dy + dz * dz;
+        int lod = 0;
+        while (lod < lodDistances.length && distanceSquared > lodDistances[lod] * lodDistances[lod]) ++lod;
+        return lod;
+    }
+
+    /**
+     * Faces of a chunk that border a chunk at another level of detail, as Terrain.CAP_* bits
+    **/
+    protected int capFacesAt(int cx, int cy, int cz, int lod) {
+        int faces = 0;
+        if (lodAt(cx - 1, cy, cz) != lod) faces |= Terrain.CAP_NEG_X;
+        if (lodAt(cx + 1, cy, cz) != lod) faces |= Terrain.CAP_POS_X;
+        if (lodAt(cx, cy - 1, cz) != lod) faces |= Terrain.CAP_NEG_Y;
+        if (lodAt(cx, cy + 1, cz) != lod) faces |= Terrain.CAP_POS_Y;
+        if (lodAt(cx, cy, cz - 1) != lod) faces |= Terrain.CAP_NEG_Z;
+        if (lodAt(cx, cy, cz + 1) != lod) faces |= Terrain.CAP_POS_Z;
+        return faces;
+    }
+
+    /**
+     * Regenerates chunks whose level of detail changed since the camera moved, and remeshes those whose
+     * neighbors' levels changed so their caps line up with the new transitions.
+     * Like loading, regenerating stops once the meshing queue is full or the GPU has no free slot for a chunk that
+     * needs one; the rest are picked up on later updates. Chunks that are still meshing are never sent to the GPU,
+     * since the work queued for them replaces their grid anyway, so they're generated on the workers.
+    **/
+    private void updateLods() {
+        lodsChanged = false;
+        for (Chunk chunk : chunks.values()) {
+            int lod = lodAt(chunk.chunkX, chunk.chunkY, chunk.chunkZ);
+            int capFaces = capFacesAt(chunk.chunkX, chunk.chunkY, chunk.chunkZ, lod);
+            if (lod != chunk.lod) {
+                boolean onGpu = !chunk.meshing && usesGpu()
+                    && readStoredFlags(chunk.chunkX, chunk.chunkY, chunk.chunkZ) == -1;
+                if (getPendingCount() >= maxPendingChunks || (onGpu && !gpuDensity.HasFreeSlot())) {
+                    lodsChanged = true;
+                    continue;
+                }
+                chunk.lod = lod;
+                chunk.capFaces = capFaces;
+                if (onGpu) {
+                    startGpuJob(chunk, lod, capFaces);
+                } else {
+                    meshing.Submit(chunk, (out) -> prepareChunk(chunk, lod, capFaces, null, out));
+                }
+            } else if (capFaces != chunk.capFaces) {
+                setCaps(chunk, capFaces);
+            }
+        }
+    }
+
+    //Remeshes a loaded chunk if the levels of its neighbors changed which of its faces need caps
+    private void updateCaps(int cx, int cy, int cz) {
+        Chunk chunk = chunks.get(chunkKey(cx, cy, cz));
+        if (chunk == null) return;
+        int capFaces = capFacesAt(cx, cy, cz, chunk.lod);
+        if (capFaces != chunk.capFaces) setCaps(chunk, capFaces);
+    }
+
+    private void setCaps(Chunk chunk, int capFaces) {
+        chunk.capFaces = capFaces;
+        chunk.QueueEdit((terrain) -> terrain.SetBorderCaps(capFaces));
+        meshing.Submit(chunk, null);
+    }
+
+    /**
+     * Adds to the density within a world-space sphere, fading out towards its edge.
+     * Only the loaded chunks the sphere touches are re-polygonised and re-uploaded.
+     * @return The number of chunks affected
+    **/
+    public int AddDensitySphere(Vector3f center, float radius, float amount) {
+        return editSphere(center, radius, amount, false);
+    }
+
+    /**
+     * Sets the density within a world-space sphere to a value.
+     * @return The number of chunks affected
+    **/
+    public int SetDensitySphere(Vector3f center, float radius, float value) {
+        return editSphere(center, radius, value, true);
+    }
+
+    /**
+     * Sets the density within a world-space box to a value.
+     * @return The number of chunks affected
+    **/
+    public int SetDensityBox(Vector3f min, Vector3f max, float value) {
+        int minX = (int) Math.ceil(min.x / gridSpacing), maxX = (int) Math.floor(max.x / gridSpacing);
+        int minY = (int) Math.ceil(min.y / gridSpacing), maxY = (int) Math.floor(max.y / gridSpacing);
+        int minZ = (int) Math.ceil(min.z / gridSpacing), maxZ = (int) Math.floor(max.z / gridSpacing);
+        return forEachChunkTouching(minX, minY, minZ, maxX, maxY, maxZ, (chunk) -> {
+            int ox = chunk.chunkX * chunkSize, oy = chunk.chunkY * chunkSize, oz = chunk.chunkZ * chunkSize;
+            chunk.QueueEdit((terrain) -> terrain.SetDensityBox(minX - ox, minY - oy, minZ - oz, maxX - ox, maxY - oy, maxZ - oz, value));
+        });
+    }
+
+    private int editSphere(Vector3f center, float radius, float amount, boolean replace) {
+        float gx = center.x / gridSpacing, gy = center.y / gridSpacing, gz = center.z / gridSpacing;
+        float gridRadius = radius / gridSpacing;
+        return forEachChunkTouching(
+            (int) Math.ceil(gx - gridRadius), (int) Math.ceil(gy - gridRadius), (int) Math.ceil(gz - gridRadius),
+            (int) Math.floor(gx + gridRadius), (int) Math.floor(gy + gridRadius), (int) Math.floor(gz + gridRadius),
+            (chunk) -> {
+                float lx = gx - chunk.chunkX * chunkSize, ly = gy - chunk.chunkY * chunkSize, lz = gz - chunk.chunkZ * chunkSize;
+                if (replace) {
+                    chunk.QueueEdit((terrain) -> terrain.SetDensitySphere(lx, ly, lz, gridRadius, amount));
+                } else {
+                    chunk.QueueEdit((terrain) -> terrain.AddDensitySphere(lx, ly, lz, gridRadius, amount));
+                }
+            });
+    }
+
+    /**
+     * Runs the action on every loaded chunk whose grid or halo contains a corner within the given global grid range,
+     * then queues those chunks for meshing. Chunks on either side of a border both hold the border corners,
+     * and each holds the corners next to the border in the other in its halo, so both get the edit and stay seamless.
+     * Only chunks at full resolution are edited, and they are pinned there so the edits are kept.
+    **/
+    private int forEachChunkTouching(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, Consumer<Chunk> action) {
+        if (minX > maxX || minY > maxY || minZ > maxZ) return 0;
+        int count = 0;
+        for (int cz = Math.floorDiv(minZ - 2, chunkSize); cz <= Math.floorDiv(maxZ + 1, chunkSize); ++cz) {
+            for (int cy = Math.floorDiv(minY - 2, chunkSize); cy <= Math.floorDiv(maxY + 1, chunkSize); ++cy) {
+                for (int cx = Math.floorDiv(minX - 2, chunkSize); cx <= Math.floorDiv(maxX + 1, chunkSize); ++cx) {
+                    Chunk chunk = chunks.get(chunkKey(cx, cy, cz));
+                    if (chunk == null || chunk.lod != 0) continue;
+                    chunk.pinned = true;
+                    action.accept(chunk);
+                    meshing.Submit(chunk, null);
+                    ++count;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Prints the average density memory per chunk for the current setting and for each storage mode.
+     * Chunks that are being meshed are skipped, since their grids belong to a worker thread.
+    **/
+    public void PrintDensityReport() {
+        DensityStorage[] modes = DensityStorage.values();
+        long[] modeBytes = new long[modes.length];
+        int[] modeUniform = new int[modes.length];
+        long currentBytes = 0, floatBytes = 0;
+        int count = 0;
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.meshing) continue;
+            Terrain terrain = chunk.GetTerrain();
+            currentBytes += terrain.GetDensityByteSize();
+            floatBytes += (long) (terrain.gridCols + 1) * (terrain.gridLayers + 1) * (terrain.gridRows + 1) * Float.BYTES;
+            for (int i = 0; i < modes.length; ++i) {
+                PackedDensity packed = terrain.PackCopy(modes[i]);
+                modeBytes[i] += packed.getByteSize();
+                if (packed.isUniform()) ++modeUniform[i];
+            }
+            ++count;
+        }
+        if (count == 0) return;
+
+        System.out.printf("Density memory over %d chunks: %d bytes/chunk as float grids, %d bytes/chunk currently (%s).%n",
+            count, floatBytes / count, currentBytes / count, densityStorage == null ? "float grids" : densityStorage);
+        for (int i = 0; i < modes.length; ++i) {
+            System.out.printf("    %s: %d bytes/chunk, %d collapsed chunks%n", modes[i], modeBytes[i] / count, modeUniform[i]);
+        }
+    }
+
+    public Chunk GetChunk(int cx, int cy, int cz) {
+        return chunks.get(chunkKey(cx, cy, cz));
+    }
+
+    public Collection<Chunk> GetChunks() {
+        return chunks.values();
+    }
+
+    //Packs chunk coordinates into 21 bits each
+    protected static long chunkKey(int cx, int cy, int cz) {
+        return ((long) (cx & 0x1FFFFF) << 42) | ((long) (cy & 0x1FFFFF) << 21) | (long) (cz & 0x1FFFFF);
+    }
+
+    @Override
+    public void close() {
+        for (GpuJob job : gpuJobs) {
+            gpuDensity.Cancel(job.request);
+        }
+        gpuJobs.clear();
+        meshing.close();
+        for (Chunk chunk : chunks.values()) {
+            chunk.close();
+        }
+        chunks.clear();
+        renderer.close();
+    }
+}
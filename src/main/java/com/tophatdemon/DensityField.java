@@ -0,0 +1,158 @@
+package com.tophatdemon;
+
+import java.util.Arrays;
+
+/**
+ * A 3D grid of density samples stored in one contiguous array.
+ * X varies fastest, then Y, then Z, so loops should run z-outer, x-inner to walk memory in order.
+ * The cells between the samples are grouped into blocks of BLOCK_SIZE^3, each with the minimum and
+ * maximum of its corner samples, so whole blocks that can't contain a surface can be skipped.
+**/
+public class DensityField {
+    public static final int BLOCK_SHIFT = 3;
+    public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    protected final int sizeX;
+    protected final int sizeY;
+    protected final int sizeZ;
+    protected final float[] values;
+
+    protected final int blocksX;
+    protected final int blocksY;
+    protected final int blocksZ;
+    protected final float[] blockMin;
+    protected final float[] blockMax;
+
+    /**
+     * @param sizeX Number of samples along X (grid columns + 1)
+     * @param sizeY Number of samples along Y (grid layers + 1)
+     * @param sizeZ Number of samples along Z (grid rows + 1)
+    **/
+    public DensityField(int sizeX, int sizeY, int sizeZ) {
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        values = new float[sizeX * sizeY * sizeZ];
+        blocksX = Math.max(1, (sizeX - 1 + BLOCK_SIZE - 1) >> BLOCK_SHIFT);
+        blocksY = Math.max(1, (sizeY - 1 + BLOCK_SIZE - 1) >> BLOCK_SHIFT);
+        blocksZ = Math.max(1, (sizeZ - 1 + BLOCK_SIZE - 1) >> BLOCK_SHIFT);
+        blockMin = new float[blocksX * blocksY * blocksZ];
+        blockMax = new float[blocksX * blocksY * blocksZ];
+    }
+
+    public int index(int x, int y, int z) {
+        return x + sizeX * (y + sizeY * z);
+    }
+
+    public float get(int x, int y, int z) {
+        return values[x + sizeX * (y + sizeY * z)];
+    }
+
+    /**
+     * Sets one sample and widens the bounds of the blocks it belongs to. The bounds are not narrowed
+     * when a sample moves inwards, which only means a block may be visited when it didn't need to be.
+    **/
+    public void set(int x, int y, int z, float value) {
+        values[x + sizeX * (y + sizeY * z)] = value;
+        //A sample on a block boundary is a corner of the blocks on both sides
+        int bx0 = Math.max(0, (x - 1) >> BLOCK_SHIFT), bx1 = Math.min(blocksX - 1, x >> BLOCK_SHIFT);
+        int by0 = Math.max(0, (y - 1) >> BLOCK_SHIFT), by1 = Math.min(blocksY - 1, y >> BLOCK_SHIFT);
+        int bz0 = Math.max(0, (z - 1) >> BLOCK_SHIFT), bz1 = Math.min(blocksZ - 1, z >> BLOCK_SHIFT);
+        for (int bz = bz0; bz <= bz1; ++bz) {
+            for (int by = by0; by <= by1; ++by) {
+                for (int bx = bx0; bx <= bx1; ++bx) {
+                    int b = bx + blocksX * (by + blocksY * bz);
+                    if (value < blockMin[b]) blockMin[b] = value;
+                    if (value > blockMax[b]) blockMax[b] = value;
+                }
+            }
+        }
+    }
+
+    public void fill(float value) {
+        Arrays.fill(values, value);
+        Arrays.fill(blockMin, value);
+        Arrays.fill(blockMax, value);
+    }
+
+    /**
+     * Recomputes the exact bounds of every block. Must be called after writing to getValues() directly.
+    **/
+    public void updateBlockBounds() {
+        final int strideY = sizeX, strideZ = sizeX * sizeY;
+        int b = 0;
+        for (int bz = 0; bz < blocksZ; ++bz) {
+            int z0 = bz << BLOCK_SHIFT, z1 = Math.min(sizeZ - 1, z0 + BLOCK_SIZE);
+            for (int by = 0; by < blocksY; ++by) {
+                int y0 = by << BLOCK_SHIFT, y1 = Math.min(sizeY - 1, y0 + BLOCK_SIZE);
+                for (int bx = 0; bx < blocksX; ++bx, ++b) {
+                    int x0 = bx << BLOCK_SHIFT, x1 = Math.min(sizeX - 1, x0 + BLOCK_SIZE);
+                    float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+                    for (int z = z0; z <= z1; ++z) {
+                        for (int y = y0; y <= y1; ++y) {
+                            int row = y * strideY + z * strideZ;
+                            for (int i = row + x0; i <= row + x1; ++i) {
+                                float v = values[i];
+                                if (v < min) min = v;
+                                if (v > max) max = v;
+                            }
+                        }
+                    }
+                    blockMin[b] = min;
+                    blockMax[b] = max;
+                }
+            }
+        }
+    }
+
+    /**
+     * Whether the cells of the block could have corners on both sides of the iso level.
+     * A cell is only polygonised when some of its corners are below the iso level and some aren't.
+    **/
+    public boolean blockMayCross(int bx, int by, int bz, float isoLevel) {
+        int b = bx + blocksX * (by + blocksY * bz);
+        return blockMin[b] < isoLevel && blockMax[b] >= isoLevel;
+    }
+
+    public int getBlocksX() {
+        return blocksX;
+    }
+
+    public int getBlocksY() {
+        return blocksY;
+    }
+
+    public int getBlocksZ() {
+        return blocksZ;
+    }
+
+    /**
+     * The backing array, for loops that step through it directly using index() and the strides.
+     * Call updateBlockBounds() after writing to it.
+    **/
+    public float[] getValues() {
+        return values;
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    //Distance in the array between neighboring samples along Y
+    public int getStrideY() {
+        return sizeX;
+    }
+
+    //Distance in the array between neighboring samples along Z
+    public int getStrideZ() {
+        return sizeX * sizeY;
+    }
+}
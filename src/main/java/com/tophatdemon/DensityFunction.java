@@ -0,0 +1,27 @@
+package com.tophatdemon;
+
+/**
+ * A density weight for every point in space, in global grid coordinates. Weights at or above the
+ * terrain's iso level are solid. See DensityFunctions for the building blocks and combinators.
+ * Implementations must be stateless, so one function can fill grids on several threads at once.
+**/
+public interface DensityFunction {
+    float sample(float x, float y, float z);
+
+    /**
+     * Fills dest with the weight at each corner of the grid, with x varying fastest.
+     * Override it where evaluating a whole grid at once is cheaper than sampling corner by corner.
+    **/
+    default void fill(float[] dest, SampleGrid grid) {
+        int i = 0;
+        for (int z = 0; z < grid.getSizeZ(); ++z) {
+            float gz = grid.getZ(z);
+            for (int y = 0; y < grid.getSizeY(); ++y) {
+                float gy = grid.getY(y);
+                for (int x = 0; x < grid.getSizeX(); ++x, ++i) {
+                    dest[i] = sample(grid.getX(x), gy, gz);
+                }
+            }
+        }
+    }
+}
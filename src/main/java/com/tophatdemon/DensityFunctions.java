@@ -0,0 +1,285 @@
+package com.tophatdemon;
+
+import java.util.Arrays;
+
+/**
+ * Building blocks for DensityFunction graphs: noise sources, height maps and ways to combine them.
+ * Nodes that read height maps get them from the SampleGrid's column cache, so a height map is evaluated
+ * once per column however many nodes use it. Combinators fill their inputs into the grid's scratch arrays
+ * and combine them in one pass, so a whole graph fills a grid without per-corner virtual calls where it can.
+**/
+public class DensityFunctions {
+    //Added to the offset of each successive octave, so octaves don't line up where the noise is zero
+    private static final float OCTAVE_SHIFT = 71.37f;
+
+    private DensityFunctions() {
+    }
+
+    /**
+     * An offset into the noise field derived from a seed, so different parts of a graph can sample different
+     * areas. The salt tells apart the offsets taken from one seed.
+    **/
+    public static float seedOffset(long seed, int salt) {
+        return (TerrainGenerator.mix(seed + salt) >>> 40) * 0x1.0p-24f * 1000.0f;
+    }
+
+    public static DensityFunction constant(float value) {
+        return new DensityFunction() {
+            @Override
+            public float sample(float x, float y, float z) {
+                return value;
+            }
+
+            @Override
+            public void fill(float[] dest, SampleGrid grid) {
+                Arrays.fill(dest, 0, grid.getSampleCount(), value);
+            }
+        };
+    }
+
+    /**
+     * Simplex noise in [-1, 1] at ((x + offset) * frequency, ...)
+    **/
+    public static DensityFunction simplex(float frequency, float offset) {
+        return fbm(frequency, offset, 1, 2.0f, 0.5f);
+    }
+
+    /**
+     * Fractal noise: octaves of simplex noise, each at lacunarity times the frequency and gain times the amplitude
+     * of the last, normalized back to [-1, 1]
+    **/
+    public static DensityFunction fbm(float frequency, float offset, int octaves, float lacunarity, float gain) {
+        float[] frequencies = new float[octaves], offsets = new float[octaves], amplitudes = new float[octaves];
+        float total = 0.0f, amplitude = 1.0f;
+        for (int i = 0; i < octaves; ++i) {
+            frequencies[i] = frequency;
+            offsets[i] = offset + i * OCTAVE_SHIFT;
+            amplitudes[i] = amplitude;
+            total += amplitude;
+            frequency *= lacunarity;
+            amplitude *= gain;
+        }
+        for (int i = 0; i < octaves; ++i) amplitudes[i] /= total;
+
+        return new DensityFunction() {
+            @Override
+            public float sample(float x, float y, float z) {
+                float sum = 0.0f;
+                for (int i = 0; i < octaves; ++i) {
+                    float f = frequencies[i], o = offsets[i];
+                    sum += SimplexNoiseBatch.noise((x + o) * f, (y + o) * f, (z + o) * f) * amplitudes[i];
+                }
+                return sum;
+            }
+
+            @Override
+            public void fill(float[] dest, SampleGrid grid) {
+                Arrays.fill(dest, 0, grid.getSampleCount(), 0.0f);
+                for (int i = 0; i < octaves; ++i) {
+                    SimplexNoiseBatch.accumulate(dest, grid.sizeX, grid.sizeY, grid.sizeZ,
+                        grid.originX, grid.originY, grid.originZ, grid.stride, offsets[i], frequencies[i], amplitudes[i]);
+                }
+            }
+        };
+    }
+
+    /**
+     * A height map of fractal noise through the plane y = offset of the noise field, in [base - amplitude, base + amplitude]
+    **/
+    public static HeightFunction heightFbm(float frequency, float offset, int octaves, float lacunarity, float gain,
+                                           float base, float amplitude) {
+        float[] frequencies = new float[octaves], offsets = new float[octaves], amplitudes = new float[octaves];
+        float total = 0.0f, octaveAmplitude = 1.0f;
+        for (int i = 0; i < octaves; ++i) {
+            frequencies[i] = frequency;
+            offsets[i] = offset + i * OCTAVE_SHIFT;
+            amplitudes[i] = octaveAmplitude;
+            total += octaveAmplitude;
+            frequency *= lacunarity;
+            octaveAmplitude *= gain;
+        }
+        for (int i = 0; i < octaves; ++i) amplitudes[i] *= amplitude / total;
+
+        return (x, z) -> {
+            float height = base;
+            for (int i = 0; i < octaves; ++i) {
+                float f = frequencies[i], o = offsets[i];
+                height += SimplexNoiseBatch.noise((x + o) * f, o * f, (z + o) * f) * amplitudes[i];
+            }
+            return height;
+        };
+    }
+
+    /**
+     * Solid below the height map and empty above it. The weight is 0.5 at the height and changes by
+     * falloff per grid unit away from it, clamped to [0, 1].
+    **/
+    public static DensityFunction heightGradient(HeightFunction height, float falloff) {
+        return new DensityFunction() {
+            @Override
+            public float sample(float x, float y, float z) {
+                return clamp((height.sample(x, z) - y) * falloff + 0.5f);
+            }
+
+            @Override
+            public void fill(float[] dest, SampleGrid grid) {
+                float[] columns = grid.getColumns(height);
+                int sizeX = grid.getSizeX();
+                int i = 0;
+                for (int z = 0; z < grid.getSizeZ(); ++z) {
+                    for (int y = 0; y < grid.getSizeY(); ++y) {
+                        float gy = grid.getY(y);
+                        for (int x = 0, c = z * sizeX; x < sizeX; ++x, ++c, ++i) {
+                            dest[i] = clamp((columns[c] - gy) * falloff + 0.5f);
+                        }
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * a * scale + offset, e.g. to map noise in [-1, 1] to weights in [0, 1]
+    **/
+    public static DensityFunction remap(DensityFunction a, float scale, float offset) {
+        return new DensityFunction() {
+            @Override
+            public float sample(float x, float y, float z) {
+                return a.sample(x, y, z) * scale + offset;
+            }
+
+            @Override
+            public void fill(float[] dest, SampleGrid grid) {
+                a.fill(dest, grid);
+                for (int i = 0, n = grid.getSampleCount(); i < n; ++i) dest[i] = dest[i] * scale + offset;
+            }
+        };
+    }
+
+    public static DensityFunction add(DensityFunction a, DensityFunction b) {
+        return new Combined(a, b) {
+            @Override
+            float combine(float va, float vb) {
+                return va + vb;
+            }
+        };
+    }
+
+    public static DensityFunction multiply(DensityFunction a, DensityFunction b) {
+        return new Combined(a, b) {
+            @Override
+            float combine(float va, float vb) {
+                return va * vb;
+            }
+        };
+    }
+
+    /**
+     * Solid only where both are solid, i.e. the intersection. With b inverted, carves b out of a.
+    **/
+    public static DensityFunction min(DensityFunction a, DensityFunction b) {
+        return new Combined(a, b) {
+            @Override
+            float combine(float va, float vb) {
+                return Math.min(va, vb);
+            }
+        };
+    }
+
+    /**
+     * Solid where either is solid, i.e. the union
+    **/
+    public static DensityFunction max(DensityFunction a, DensityFunction b) {
+        return new Combined(a, b) {
+            @Override
+            float combine(float va, float vb) {
+                return Math.max(va, vb);
+            }
+        };
+    }
+
+    /**
+     * Samples a at points displaced by amount times the three warp functions, bending its features
+    **/
+    public static DensityFunction warp(DensityFunction a, DensityFunction warpX, DensityFunction warpY, DensityFunction warpZ,
+                                       float amount) {
+        return new DensityFunction() {
+            @Override
+            public float sample(float x, float y, float z) {
+                return a.sample(
+                    x + warpX.sample(x, y, z) * amount,
+                    y + warpY.sample(x, y, z) * amount,
+                    z + warpZ.sample(x, y, z) * amount);
+            }
+
+            @Override
+            public void fill(float[] dest, SampleGrid grid) {
+                //The displacements are filled a grid at a time; only the warped lookups go point by point
+                float[] dx = grid.borrow(), dy = grid.borrow(), dz = grid.borrow();
+                warpX.fill(dx, grid);
+                warpY.fill(dy, grid);
+                warpZ.fill(dz, grid);
+                int i = 0;
+                for (int z = 0; z < grid.getSizeZ(); ++z) {
+                    float gz = grid.getZ(z);
+                    for (int y = 0; y < grid.getSizeY(); ++y) {
+                        float gy = grid.getY(y);
+                        for (int x = 0; x < grid.getSizeX(); ++x, ++i) {
+                            dest[i] = a.sample(grid.getX(x) + dx[i] * amount, gy + dy[i] * amount, gz + dz[i] * amount);
+                        }
+                    }
+                }
+                grid.release(dx);
+                grid.release(dy);
+                grid.release(dz);
+            }
+        };
+    }
+
+    /**
+     * Rolling hills from a fractal height map, with warped caves carved out of them.
+     * An example of a full graph, and what the generator uses when asked for more than plain noise.
+     * @param frequency Noise frequency per grid unit of the caves; the hills are four times broader
+    **/
+    public static DensityFunction hills(long seed, float frequency) {
+        HeightFunction ground = heightFbm(frequency * 0.25f, seedOffset(seed, 0), 4, 2.0f, 0.5f, 0.0f, 48.0f);
+        DensityFunction caveWarp = warp(simplex(frequency, seedOffset(seed, 1)),
+            simplex(frequency * 0.5f, seedOffset(seed, 2)),
+            simplex(frequency * 0.5f, seedOffset(seed, 3)),
+            simplex(frequency * 0.5f, seedOffset(seed, 4)),
+            6.0f);
+        //Solid where the cave noise is above -1/3, so about a quarter of the ground is hollowed out
+        DensityFunction caves = remap(caveWarp, 1.5f, 1.0f);
+        return min(heightGradient(ground, 0.125f), caves);
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0.0f, Math.min(1.0f, value));
+    }
+
+    //Combines two functions corner by corner, filling b into a scratch array
+    private abstract static class Combined implements DensityFunction {
+        final DensityFunction a, b;
+
+        Combined(DensityFunction a, DensityFunction b) {
+            this.a = a;
+            this.b = b;
+        }
+
+        abstract float combine(float va, float vb);
+
+        @Override
+        public float sample(float x, float y, float z) {
+            return combine(a.sample(x, y, z), b.sample(x, y, z));
+        }
+
+        @Override
+        public void fill(float[] dest, SampleGrid grid) {
+            a.fill(dest, grid);
+            float[] other = grid.borrow();
+            b.fill(other, grid);
+            for (int i = 0, n = grid.getSampleCount(); i < n; ++i) dest[i] = combine(dest[i], other[i]);
+            grid.release(other);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.tophatdemon;
+
+/**
+ * How a Terrain's density samples are kept in memory while the chunk is idle, see PackedDensity
+**/
+public enum DensityStorage {
+    //Lossless 32-bit floats; only chunks where every sample is identical collapse to a single value
+    FLOAT(4),
+    //Signed 16-bit offsets from the iso level; chunks entirely above or below the iso level collapse to their border
+    QUANTIZED_16(2),
+    //Signed 8-bit offsets from the iso level; chunks entirely above or below the iso level collapse to their border
+    QUANTIZED_8(1),
+    ;
+
+    public final int bytesPerSample;
+    private DensityStorage(int bytesPerSample) {
+        this.bytesPerSample = bytesPerSample;
+    }
+}
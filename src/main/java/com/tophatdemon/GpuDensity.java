@@ -0,0 +1,478 @@
+package com.tophatdemon;
+
+import java.nio.ByteBuffer;
+
+import org.joml.Vector3i;
+import org.lwjgl.system.MemoryUtil;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Evaluates the generator's noise for chunk grids on the GPU, with transform feedback so it stays within GL 3.3.
+ * The first pass draws one point per sample and captures the weights into a buffer that stays on the GPU.
+ * The second reads that buffer as a buffer texture and draws one point per run of 32 cells along a row, capturing
+ * a bit for each cell the surface passes through along with the sum of the run's samples.
+ * A grid the surface doesn't pass through keeps only its border samples and its mean with a quantized storage mode,
+ * so for those storages a third pass gathers the border faces, which are read back instead of every sample when the
+ * runs show the surface misses the grid.
+ * Submit() only issues the passes and a fence, and Poll() reads the grid back on a later frame once the fence has
+ * signaled, so the GL thread doesn't wait for the GPU. Each request in flight has its own buffers.
+ * Must only be used from the GL thread.
+**/
+public class GpuDensity implements AutoCloseable {
+    //Cells per classification run, one bit each of a 32-bit mask
+    private static final int RUN_CELLS = 32;
+    //What each run writes: its cell mask, then the sum of its samples
+    private static final int RUN_BYTES = Integer.BYTES + Float.BYTES;
+    //Requests that can be in flight at once
+    private static final int MAX_IN_FLIGHT = 8;
+    //Largest difference Verify() accepts between a sample from the GPU and one from SimplexNoiseBatch
+    private static final float VERIFY_TOLERANCE = 1.0e-5f;
+
+    /**
+     * One evaluated grid. It holds no GL objects, so it can be applied to a terrain on any thread.
+    **/
+    public static class Grid {
+        public final int size;
+        public final int activeCells;
+        public final float mean;
+        //The samples with x varying fastest, or null if the surface doesn't pass through and they weren't needed
+        public final float[] values;
+        //The samples on the faces when values is null, in the order -x, +x, -y, +y, -z, +z, each with x varying fastest
+        protected final float[] faces;
+        protected final int runsPerRow;
+        protected final int[] cellMasks;
+        protected final float isoLevel;
+
+        Grid(int size, int activeCells, float mean, float[] values, float[] faces, int runsPerRow, int[] cellMasks,
+             float isoLevel) {
+            this.size = size;
+            this.activeCells = activeCells;
+            this.mean = mean;
+            this.values = values;
+            this.faces = faces;
+            this.runsPerRow = runsPerRow;
+            this.cellMasks = cellMasks;
+            this.isoLevel = isoLevel;
+        }
+
+        /**
+         * True if cell (x, y, z) has corners on both sides of the iso level
+        **/
+        public boolean isCellActive(int x, int y, int z) {
+            int mask = cellMasks[(y + z * size) * runsPerRow + x / RUN_CELLS];
+            return (mask & (1 << (x % RUN_CELLS))) != 0;
+        }
+
+        /**
+         * Replaces the terrain's grid, which must have size - 1 cells along each side.
+         * Without the samples, the border is filled from the faces and the inside with one value that keeps the
+         * grid's mean, so packing it gives what packing every sample would.
+        **/
+        public void applyTo(Terrain terrain) {
+            terrain.SetDensityValues((values != null) ? values : fillFromFaces());
+        }
+
+        private float[] fillFromFaces() {
+            float[] filled = new float[size * size * size];
+            int last = size - 1, faceSize = size * size, i = 0, interior = 0;
+            double borderSum = 0.0;
+            for (int z = 0; z < size; ++z) {
+                for (int y = 0; y < size; ++y) {
+                    for (int x = 0; x < size; ++x, ++i) {
+                        int face;
+                        if (x == 0 || x == last) face = ((x == 0) ? 0 : 1) * faceSize + y + z * size;
+                        else if (y == 0 || y == last) face = ((y == 0) ? 2 : 3) * faceSize + x + z * size;
+                        else if (z == 0 || z == last) face = ((z == 0) ? 4 : 5) * faceSize + x + y * size;
+                        else {
+                            ++interior;
+                            continue;
+                        }
+                        filled[i] = faces[face];
+                        borderSum += faces[face];
+                    }
+                }
+            }
+            if (interior == 0) return filled;
+
+            float inside = (float) (((double) mean * filled.length - borderSum) / interior);
+            //Rounding mustn't carry it across the iso level, where packing would no longer collapse the grid
+            if ((inside >= isoLevel) != (mean >= isoLevel)) inside = mean;
+            i = 0;
+            for (int z = 0; z < size; ++z) {
+                for (int y = 0; y < size; ++y) {
+                    for (int x = 0; x < size; ++x, ++i) {
+                        if (x > 0 && y > 0 && z > 0 && x < last && y < last && z < last) filled[i] = inside;
+                    }
+                }
+            }
+            return filled;
+        }
+    }
+
+    /**
+     * A grid whose passes have been issued but haven't necessarily finished. Poll() it on later frames until it's ready.
+    **/
+    public static class Request {
+        private final Slot slot;
+        private final int size;
+        private final int runsPerRow;
+        private final float isoLevel;
+        private final boolean collapses;
+        private long fence;
+
+        private Request(Slot slot, int size, int runsPerRow, float isoLevel, boolean collapses, long fence) {
+            this.slot = slot;
+            this.size = size;
+            this.runsPerRow = runsPerRow;
+            this.isoLevel = isoLevel;
+            this.collapses = collapses;
+            this.fence = fence;
+        }
+    }
+
+    //The buffers one request in flight writes into, so later ones can be issued before it's read back
+    private static class Slot {
+        final int densityBuffer = glGenBuffers();
+        final int densityTexture = glGenTextures();
+        final int runBuffer = glGenBuffers();
+        final int borderBuffer = glGenBuffers();
+        int densityCapacity;
+        int runCapacity;
+        int borderCapacity;
+        Request request;
+    }
+
+    private final Shader densityShader;
+    private final Shader classifyShader;
+    private final Shader borderShader;
+    private final int vertexArrayObject;
+    private final Slot[] slots = new Slot[MAX_IN_FLIGHT];
+    private ByteBuffer runData;
+
+    /**
+     * @throws Exception If the shaders can't be loaded or don't compile, e.g. on a context without GL 3.3
+    **/
+    public GpuDensity() throws Exception {
+        densityShader = Shader.LoadTransformFeedback("shaders/density.vert", "weight");
+        try {
+            classifyShader = Shader.LoadTransformFeedback("shaders/classify.vert", "cellMask", "weightSum");
+        } catch (Exception e) {
+            densityShader.close();
+            throw e;
+        }
+        try {
+            borderShader = Shader.LoadTransformFeedback("shaders/border.vert", "weight");
+        } catch (Exception e) {
+            densityShader.close();
+            classifyShader.close();
+            throw e;
+        }
+        classifyShader.bind();
+        classifyShader.setUniform(Shader.Uniform.DENSITY, 0);
+        borderShader.bind();
+        borderShader.setUniform(Shader.Uniform.DENSITY, 0);
+
+        //Core profiles need a vertex array bound to draw, even with no attributes
+        vertexArrayObject = glGenVertexArrays();
+        for (int i = 0; i < slots.length; ++i) {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * True if another request can be submitted before one in flight is read back or cancelled
+    **/
+    public boolean HasFreeSlot() {
+        for (Slot slot : slots) {
+            if (slot.request == null) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Issues the passes for the grid of chunk (cx, cy, cz) at the given level of detail, which will have the same
+     * samples TerrainGenerator.Generate() would give it up to rounding. Nothing here waits for the GPU.
+     * @param storage How the terrain will hold the grid. Unless it's quantized, all the samples are always read back.
+     * @throws IllegalStateException If every slot is in flight; check HasFreeSlot() first
+    **/
+    public Request Submit(TerrainGenerator generator, int cx, int cy, int cz, int lod, float isoLevel, DensityStorage storage) {
+        if (generator.densityFunction != null) {
+            throw new IllegalArgumentException("Only single octave noise can be evaluated on the GPU");
+        }
+        Slot slot = null;
+        for (Slot s : slots) {
+            if (s.request == null) {
+                slot = s;
+                break;
+            }
+        }
+        if (slot == null) throw new IllegalStateException("Every request slot is in flight");
+
+        int cells = generator.chunkSize >> lod;
+        int size = cells + 1;
+        int samples = size * size * size;
+        int runsPerRow = (cells + RUN_CELLS - 1) / RUN_CELLS;
+        int runs = runsPerRow * size * size;
+        boolean collapses = storage == DensityStorage.QUANTIZED_16 || storage == DensityStorage.QUANTIZED_8;
+        ensureCapacity(slot, samples, runs, collapses ? 6 * size * size : 0);
+
+        glEnable(GL_RASTERIZER_DISCARD);
+        glBindVertexArray(vertexArrayObject);
+
+        densityShader.bind();
+        try {
+            densityShader.setUniform(Shader.Uniform.GRID_SIZE, new Vector3i(size, size, size));
+            densityShader.setUniform(Shader.Uniform.GRID_ORIGIN,
+                new Vector3i(cx * generator.chunkSize, cy * generator.chunkSize, cz * generator.chunkSize));
+            densityShader.setUniform(Shader.Uniform.GRID_STRIDE, 1 << lod);
+            densityShader.setUniform(Shader.Uniform.NOISE_OFFSET, generator.noiseOffset);
+            densityShader.setUniform(Shader.Uniform.NOISE_SCALE, generator.noiseScale);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+        glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, slot.densityBuffer);
+        glBeginTransformFeedback(GL_POINTS);
+        glDrawArrays(GL_POINTS, 0, samples);
+        glEndTransformFeedback();
+
+        classifyShader.bind();
+        try {
+            classifyShader.setUniform(Shader.Uniform.GRID_SIZE, new Vector3i(size, size, size));
+            classifyShader.setUniform(Shader.Uniform.ISO_LEVEL, isoLevel);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_BUFFER, slot.densityTexture);
+        glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, slot.runBuffer);
+        glBeginTransformFeedback(GL_POINTS);
+        glDrawArrays(GL_POINTS, 0, runs);
+        glEndTransformFeedback();
+
+        //Whether the faces are needed isn't known until the runs are read back, and waiting for that would stall,
+        //so they're always gathered for storages that might collapse. They're a small fraction of the grid.
+        if (collapses) {
+            borderShader.bind();
+            try {
+                borderShader.setUniform(Shader.Uniform.GRID_SIZE, new Vector3i(size, size, size));
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+            }
+            glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, slot.borderBuffer);
+            glBeginTransformFeedback(GL_POINTS);
+            glDrawArrays(GL_POINTS, 0, 6 * size * size);
+            glEndTransformFeedback();
+        }
+
+        glBindBufferBase(GL_TRANSFORM_FEEDBACK_BUFFER, 0, 0);
+        glBindVertexArray(0);
+        glDisable(GL_RASTERIZER_DISCARD);
+
+        slot.request = new Request(slot, size, runsPerRow, isoLevel, collapses,
+            glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0));
+        return slot.request;
+    }
+
+    /**
+     * Reads the request's grid back if the GPU has finished it, after which its slot is free again.
+     * @return The grid, or null if the GPU is still working on it and it should be polled again on a later frame
+    **/
+    public Grid Poll(Request request) {
+        if (request.fence == 0) throw new IllegalStateException("The request was already read back or cancelled");
+        //The flush makes sure the passes reach the GPU even if nothing else is drawn before the next poll
+        int status = glClientWaitSync(request.fence, GL_SYNC_FLUSH_COMMANDS_BIT, 0);
+        if (status == GL_TIMEOUT_EXPIRED) return null;
+        //If the wait failed, reading back still gives the right grid, it just waits for the GPU to get there
+        if (status == GL_WAIT_FAILED) System.err.println("Waiting on a GPU density fence failed.");
+        return readBack(request);
+    }
+
+    /**
+     * Drops a request without reading it back, freeing its slot
+    **/
+    public void Cancel(Request request) {
+        if (request.fence == 0) return;
+        release(request);
+    }
+
+    /**
+     * Submits a grid and waits for it, stalling the GL thread, for Verify() and other tools outside the frame loop.
+     * @see #Submit(TerrainGenerator, int, int, int, int, float, DensityStorage)
+    **/
+    public Grid Evaluate(TerrainGenerator generator, int cx, int cy, int cz, int lod, float isoLevel, DensityStorage storage) {
+        Request request = Submit(generator, cx, cy, cz, lod, isoLevel, storage);
+        int status;
+        do {
+            status = glClientWaitSync(request.fence, GL_SYNC_FLUSH_COMMANDS_BIT, 1_000_000_000L);
+        } while (status == GL_TIMEOUT_EXPIRED);
+        return readBack(request);
+    }
+
+    private Grid readBack(Request request) {
+        Slot slot = request.slot;
+        int size = request.size;
+        int samples = size * size * size;
+        int runs = request.runsPerRow * size * size;
+
+        runData.clear().limit(runs * RUN_BYTES);
+        glBindBuffer(GL_COPY_READ_BUFFER, slot.runBuffer);
+        glGetBufferSubData(GL_COPY_READ_BUFFER, 0, runData);
+        int[] cellMasks = new int[runs];
+        int activeCells = 0;
+        double sum = 0.0;
+        for (int i = 0; i < runs; ++i) {
+            cellMasks[i] = runData.getInt(i * RUN_BYTES);
+            activeCells += Integer.bitCount(cellMasks[i]);
+            sum += runData.getFloat(i * RUN_BYTES + Integer.BYTES);
+        }
+
+        float[] values = null, faces = null;
+        if (activeCells > 0 || !request.collapses) {
+            values = new float[samples];
+            glBindBuffer(GL_COPY_READ_BUFFER, slot.densityBuffer);
+            glGetBufferSubData(GL_COPY_READ_BUFFER, 0, values);
+        } else {
+            faces = new float[6 * size * size];
+            glBindBuffer(GL_COPY_READ_BUFFER, slot.borderBuffer);
+            glGetBufferSubData(GL_COPY_READ_BUFFER, 0, faces);
+        }
+        glBindBuffer(GL_COPY_READ_BUFFER, 0);
+        release(request);
+        return new Grid(size, activeCells, (float) (sum / samples), values, faces, request.runsPerRow, cellMasks,
+            request.isoLevel);
+    }
+
+    private void release(Request request) {
+        glDeleteSync(request.fence);
+        request.fence = 0;
+        request.slot.request = null;
+    }
+
+    /**
+     * Evaluates a chunk both here and with SimplexNoiseBatch and prints how far apart they are, to test the shaders
+     * against the CPU path, e.g. under Mesa's software rasterizer with LIBGL_ALWAYS_SOFTWARE=1.
+     * The GPU may round differently, so a cell is only allowed to be classified differently from the CPU's samples
+     * where one of its corners is within the largest difference of the iso level. It must always match the GPU's own.
+     * The chunk is evaluated a second time with an iso level no sample reaches and quantized storage, so only its
+     * faces are read back, and those must be exactly the GPU's own samples.
+     * @return True if every sample is within the tolerance, every cell is classified consistently and the faces match
+    **/
+    public boolean Verify(TerrainGenerator generator, int cx, int cy, int cz, int lod, float isoLevel) {
+        Grid grid = Evaluate(generator, cx, cy, cz, lod, isoLevel, null);
+        int size = grid.size, cells = size - 1;
+        float[] cpu = new float[size * size * size];
+        SimplexNoiseBatch.fill(cpu, size, size, size, cx * generator.chunkSize, cy * generator.chunkSize,
+            cz * generator.chunkSize, 1 << lod, generator.noiseOffset, generator.noiseScale);
+
+        float maxError = 0.0f;
+        double cpuSum = 0.0;
+        for (int i = 0; i < cpu.length; ++i) {
+            maxError = Math.max(maxError, Math.abs(grid.values[i] - cpu[i]));
+            cpuSum += cpu[i];
+        }
+
+        int inconsistent = 0, differing = 0, unexplained = 0;
+        for (int z = 0; z < cells; ++z) {
+            for (int y = 0; y < cells; ++y) {
+                for (int x = 0; x < cells; ++x) {
+                    boolean active = grid.isCellActive(x, y, z);
+                    if (active != isCellActive(grid.values, size, x, y, z, isoLevel)) ++inconsistent;
+                    if (active != isCellActive(cpu, size, x, y, z, isoLevel)) {
+                        ++differing;
+                        if (!hasCornerNear(cpu, size, x, y, z, isoLevel, maxError)) ++unexplained;
+                    }
+                }
+            }
+        }
+
+        Grid collapsed = Evaluate(generator, cx, cy, cz, lod, 2.0f, DensityStorage.QUANTIZED_16);
+        //If it didn't collapse, the classification is wrong and none of the faces count as matching
+        int faceMismatches = 0;
+        if (collapsed.faces == null) {
+            faceMismatches = 6 * size * size;
+        } else {
+            int last = size - 1, faceSize = size * size;
+            for (int v = 0; v < size; ++v) {
+                for (int u = 0; u < size; ++u) {
+                    int[] expected = {
+                        0 + u * size + v * faceSize, last + u * size + v * faceSize,
+                        u + 0 * size + v * faceSize, u + last * size + v * faceSize,
+                        u + v * size + 0 * faceSize, u + v * size + last * faceSize,
+                    };
+                    for (int face = 0; face < 6; ++face) {
+                        if (collapsed.faces[face * faceSize + u + v * size] != grid.values[expected[face]]) ++faceMismatches;
+                    }
+                }
+            }
+        }
+
+        System.out.printf("Chunk (%d, %d, %d) at level %d: samples differ by up to %.3g, means by %.3g.%n",
+            cx, cy, cz, lod, maxError, Math.abs(grid.mean - cpuSum / cpu.length));
+        System.out.printf("    %d active cells, %d differ from the CPU's (%d unexplained), %d differ from the GPU's own samples.%n",
+            grid.activeCells, differing, unexplained, inconsistent);
+        System.out.printf("    %d border face samples differ from the GPU's own samples.%n", faceMismatches);
+        return maxError <= VERIFY_TOLERANCE && unexplained == 0 && inconsistent == 0 && faceMismatches == 0;
+    }
+
+    private static boolean isCellActive(float[] values, int size, int x, int y, int z, float isoLevel) {
+        int solid = 0;
+        for (int c = 0; c < 8; ++c) {
+            if (values[corner(size, x, y, z, c)] >= isoLevel) ++solid;
+        }
+        return solid != 0 && solid != 8;
+    }
+
+    private static boolean hasCornerNear(float[] values, int size, int x, int y, int z, float isoLevel, float distance) {
+        for (int c = 0; c < 8; ++c) {
+            if (Math.abs(values[corner(size, x, y, z, c)] - isoLevel) <= distance) return true;
+        }
+        return false;
+    }
+
+    private static int corner(int size, int x, int y, int z, int c) {
+        return (x + (c & 1)) + (y + ((c >> 1) & 1)) * size + (z + (c >> 2)) * size * size;
+    }
+
+    private void ensureCapacity(Slot slot, int samples, int runs, int faces) {
+        if (samples > slot.densityCapacity) {
+            slot.densityCapacity = samples;
+            glBindBuffer(GL_TRANSFORM_FEEDBACK_BUFFER, slot.densityBuffer);
+            glBufferData(GL_TRANSFORM_FEEDBACK_BUFFER, (long) samples * Float.BYTES, GL_STREAM_READ);
+            glBindTexture(GL_TEXTURE_BUFFER, slot.densityTexture);
+            glTexBuffer(GL_TEXTURE_BUFFER, GL_R32F, slot.densityBuffer);
+        }
+        if (runs > slot.runCapacity) {
+            slot.runCapacity = runs;
+            glBindBuffer(GL_TRANSFORM_FEEDBACK_BUFFER, slot.runBuffer);
+            glBufferData(GL_TRANSFORM_FEEDBACK_BUFFER, (long) runs * RUN_BYTES, GL_STREAM_READ);
+        }
+        if (faces > slot.borderCapacity) {
+            slot.borderCapacity = faces;
+            glBindBuffer(GL_TRANSFORM_FEEDBACK_BUFFER, slot.borderBuffer);
+            glBufferData(GL_TRANSFORM_FEEDBACK_BUFFER, (long) faces * Float.BYTES, GL_STREAM_READ);
+        }
+        glBindBuffer(GL_TRANSFORM_FEEDBACK_BUFFER, 0);
+        if (runData == null || runData.capacity() < runs * RUN_BYTES) {
+            MemoryUtil.memFree(runData);
+            runData = MemoryUtil.memAlloc(runs * RUN_BYTES);
+        }
+    }
+
+    @Override
+    public void close() {
+        densityShader.close();
+        classifyShader.close();
+        borderShader.close();
+        if (vertexArrayObject > 0) glDeleteVertexArrays(vertexArrayObject);
+        for (Slot slot : slots) {
+            if (slot.request != null) release(slot.request);
+            glDeleteTextures(slot.densityTexture);
+            glDeleteBuffers(slot.densityBuffer);
+            glDeleteBuffers(slot.runBuffer);
+            glDeleteBuffers(slot.borderBuffer);
+        }
+        MemoryUtil.memFree(runData);
+        runData = null;
+    }
+}
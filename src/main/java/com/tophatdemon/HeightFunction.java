@@ -0,0 +1,23 @@
+package com.tophatdemon;
+
+/**
+ * A value for every column of the world, in global grid coordinates, such as the height of the ground.
+ * Density functions read these through SampleGrid.getColumns(), so they are evaluated once per column
+ * of a grid rather than once per corner. Implementations must be stateless.
+**/
+public interface HeightFunction {
+    float sample(float x, float z);
+
+    /**
+     * Fills dest with the value for each column of the grid, indexed x + z * sizeX
+    **/
+    default void fillColumns(float[] dest, SampleGrid grid) {
+        int i = 0;
+        for (int z = 0; z < grid.getSizeZ(); ++z) {
+            float gz = grid.getZ(z);
+            for (int x = 0; x < grid.getSizeX(); ++x, ++i) {
+                dest[i] = sample(grid.getX(x), gz);
+            }
+        }
+    }
+}
@@ -300,4 +300,56 @@ class MarchingCubes {
         {}
     };
 
-}
\ No newline at end of file
+    //Number of distinct edges used by each shape, i.e. the vertices a cell emits when nothing is shared
+    public static final int[] UNIQUE_EDGE_COUNTS = new int[SHAPES.length];
+
+    //The tables below hold the same data as SHAPES and Edge as flat primitive arrays, for the polygonisation kernel.
+    //Edge ordinals of every shape, one after the other; shape m's are SHAPE_EDGES[SHAPE_STARTS[m]] up to SHAPE_STARTS[m + 1]
+    public static final byte[] SHAPE_EDGES;
+    public static final int[] SHAPE_STARTS = new int[SHAPES.length + 1];
+    //Position of each cube corner, in the order of the bits of a cell's mask
+    public static final byte[] CORNER_X = { 0, 1, 1, 0, 0, 1, 1, 0 };
+    public static final byte[] CORNER_Y = { 0, 0, 0, 0, 1, 1, 1, 1 };
+    public static final byte[] CORNER_Z = { 0, 0, 1, 1, 0, 0, 1, 1 };
+    //The corners at the start and end of each edge, indexed by edge ordinal
+    public static final byte[] EDGE_CORNER_0 = new byte[Edge.values().length];
+    public static final byte[] EDGE_CORNER_1 = new byte[Edge.values().length];
+    //Each edge's Edge.offset, and its axis (0 = x, 1 = y, 2 = z) in place of Edge.direction
+    public static final byte[] EDGE_OFFSET_X = new byte[Edge.values().length];
+    public static final byte[] EDGE_OFFSET_Y = new byte[Edge.values().length];
+    public static final byte[] EDGE_OFFSET_Z = new byte[Edge.values().length];
+    public static final byte[] EDGE_AXIS = new byte[Edge.values().length];
+
+    static {
+        int total = 0;
+        for (int i = 0; i < SHAPES.length; ++i) {
+            int used = 0;
+            for (Edge e : SHAPES[i]) used |= 1 << e.ordinal();
+            UNIQUE_EDGE_COUNTS[i] = Integer.bitCount(used);
+            SHAPE_STARTS[i] = total;
+            total += SHAPES[i].length;
+        }
+        SHAPE_STARTS[SHAPES.length] = total;
+        SHAPE_EDGES = new byte[total];
+        for (int i = 0, j = 0; i < SHAPES.length; ++i) {
+            for (Edge e : SHAPES[i]) SHAPE_EDGES[j++] = (byte) e.ordinal();
+        }
+
+        for (Edge e : Edge.values()) {
+            int ei = e.ordinal();
+            EDGE_OFFSET_X[ei] = (byte) e.offset.x;
+            EDGE_OFFSET_Y[ei] = (byte) e.offset.y;
+            EDGE_OFFSET_Z[ei] = (byte) e.offset.z;
+            EDGE_AXIS[ei] = (byte) (e.direction.x != 0 ? 0 : (e.direction.y != 0 ? 1 : 2));
+            EDGE_CORNER_0[ei] = (byte) cornerAt(e.offset.x, e.offset.y, e.offset.z);
+            EDGE_CORNER_1[ei] = (byte) cornerAt(e.offset.x + e.direction.x, e.offset.y + e.direction.y, e.offset.z + e.direction.z);
+        }
+    }
+
+    private static int cornerAt(int x, int y, int z) {
+        for (int c = 0; c < 8; ++c) {
+            if (CORNER_X[c] == x && CORNER_Y[c] == y && CORNER_Z[c] == z) return c;
+        }
+        throw new IllegalArgumentException("Not a cube corner");
+    }
+}
@@ -0,0 +1,12 @@
+package com.tophatdemon;
+
+/**
+ * Marching cubes: up to five triangles per cell, with vertices on the cell edges the surface crosses.
+ * The kernel lives in Terrain, which keeps scratch space sized for its grid.
+**/
+public class MarchingCubesExtractor implements SurfaceExtractor {
+    @Override
+    public void extract(Terrain terrain, MeshData out) {
+        terrain.marchingCubes(out);
+    }
+}
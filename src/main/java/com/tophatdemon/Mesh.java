@@ -1,8 +1,10 @@
 package com.tophatdemon;
 
+import org.joml.Vector3f;
 import org.lwjgl.system.MemoryUtil;
-import java.nio.FloatBuffer;
-import java.nio.IntBuffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
 
 import static org.lwjgl.opengl.GL33.*;
 
@@ -18,83 +20,177 @@ public class Mesh implements AutoCloseable {
     protected int normalBuffer;
     protected int indexBuffer;
 
+    //Bytes of storage allocated for each buffer, which may be more than the data in it
+    protected long positionCapacity;
+    protected long colorCapacity;
+    protected long normalCapacity;
+    protected long indexCapacity;
+
     protected int numIndices;
-    protected int numVertexBuffers; //Not counting index buffer
+    //GL_UNSIGNED_SHORT or GL_UNSIGNED_INT
+    protected int indexType = GL_UNSIGNED_INT;
+    //Bit i is set if attribute location i is read from a buffer
+    protected int enabledAttributes;
+
+    //Used for every vertex when no buffer holds colors
+    protected final Vector3f constantColor = new Vector3f(1.0f, 1.0f, 1.0f);
+
+    //Native memory that array data is copied through on its way to GL, grown as needed and kept
+    //for the life of the program. Only used on the GL thread.
+    private static ByteBuffer stagingBuffer;
 
     public Mesh() {
         vertexArrayObject = glGenVertexArrays();
     }
 
     public void setVertexPositions(float ...pos) {
-        if (positionBuffer != 0) {
-            glDeleteBuffers(positionBuffer);
-            --numVertexBuffers;
-        }
-        positionBuffer = generateFloatVBO(ATTRIBUTE_INDEX_POS, 3, pos);
+        setVertexPositions(pos, pos.length);
+    }
+
+    public void setVertexPositions(float[] pos, int length) {
+        if (positionBuffer == 0) positionBuffer = glGenBuffers();
+        positionCapacity = updateFloatVBO(positionBuffer, positionCapacity, ATTRIBUTE_INDEX_POS, 3, pos, length);
     }
     
     public void setColors(float ...cols) {
-        if (colorBuffer != 0) {
-            glDeleteBuffers(colorBuffer);
-            --numVertexBuffers;
-        }
-        colorBuffer = generateFloatVBO(ATTRIBUTE_INDEX_COLOR, 3, cols);
+        setColors(cols, cols.length);
+    }
+
+    public void setColors(float[] cols, int length) {
+        if (colorBuffer == 0) colorBuffer = glGenBuffers();
+        colorCapacity = updateFloatVBO(colorBuffer, colorCapacity, ATTRIBUTE_INDEX_COLOR, 3, cols, length);
     }
 
     public void setNormals(float ...norms) {
-        if (normalBuffer != 0) {
-            glDeleteBuffers(normalBuffer);
-            --numVertexBuffers;
-        }
-        normalBuffer = generateFloatVBO(ATTRIBUTE_INDEX_NORMAL, 3, norms);
+        setNormals(norms, norms.length);
+    }
+
+    public void setNormals(float[] norms, int length) {
+        if (normalBuffer == 0) normalBuffer = glGenBuffers();
+        normalCapacity = updateFloatVBO(normalBuffer, normalCapacity, ATTRIBUTE_INDEX_NORMAL, 3, norms, length);
     }
 
-    private int generateFloatVBO(int attrIdx, int attrSize, float ...data) {
-        FloatBuffer buffer = MemoryUtil.memAllocFloat(data.length);
-        buffer.put(data).flip();
+    private long updateFloatVBO(int vbo, long capacity, int attrIdx, int attrSize, float[] data, int length) {
+        ByteBuffer buffer = getStagingBuffer(length * Float.BYTES);
+        buffer.asFloatBuffer().put(data, 0, length);
 
         glBindVertexArray(vertexArrayObject);
-        int vbo = glGenBuffers();
         glBindBuffer(GL_ARRAY_BUFFER, vbo);
-        glBufferData(GL_ARRAY_BUFFER, buffer, GL_STATIC_DRAW);
+        capacity = updateBuffer(GL_ARRAY_BUFFER, capacity, buffer);
         
         glVertexAttribPointer(attrIdx, attrSize, GL_FLOAT, false, 0, 0);
-        ++numVertexBuffers;
-        MemoryUtil.memFree(buffer);
+        enabledAttributes |= 1 << attrIdx;
 
-        return vbo;
+        return capacity;
+    }
 
+    /**
+     * Writes the data into the buffer bound to the target, keeping its storage if the data fits.
+     * The storage is respecified either way, which orphans the old contents: the driver can hand out
+     * fresh memory instead of stalling until draws that still read the old data have finished.
+     * @return The new capacity of the buffer, in bytes
+    **/
+    private static long updateBuffer(int target, long capacity, ByteBuffer data) {
+        long size = data.remaining();
+        if (size > capacity) {
+            //Grow geometrically so a mesh that keeps getting bigger isn't reallocated every time
+            capacity = Math.max(size, capacity + capacity / 2);
+        } else if (size < capacity / 4) {
+            //Give back the memory of a mesh that has shrunk a lot
+            capacity = size;
+        }
+        glBufferData(target, Math.max(1, capacity), GL_STATIC_DRAW);
+        glBufferSubData(target, 0, data);
+        return capacity;
+    }
+
+    /**
+     * Returns the shared staging buffer, cleared and limited to the given size. Must be called from the GL thread,
+     * and the contents only last until the next call.
+    **/
+    static ByteBuffer getStagingBuffer(int bytes) {
+        if (stagingBuffer == null || stagingBuffer.capacity() < bytes) {
+            int capacity = Math.max(bytes, stagingBuffer == null ? 64 * 1024 : stagingBuffer.capacity() * 2);
+            stagingBuffer = MemoryUtil.memRealloc(stagingBuffer, capacity).order(ByteOrder.nativeOrder());
+        }
+        stagingBuffer.clear().limit(bytes);
+        return stagingBuffer;
+    }
+
+    /**
+     * Sets the color of every vertex, for when no buffer holds colors
+    **/
+    public void setConstantColor(float r, float g, float b) {
+        constantColor.set(r, g, b);
     }
 
     public void setIndices(int ...inds) {
-        numIndices = inds.length;
-        
-        IntBuffer data = MemoryUtil.memAllocInt(inds.length);
-        data.put(inds).flip();
+        setIndices(inds, inds.length);
+    }
 
-        if (indexBuffer != 0) {
-            glDeleteBuffers(indexBuffer);
+    /**
+     * Sets the indices, stored as 16 bits each if they all fit
+    **/
+    public void setIndices(int[] inds, int length) {
+        int max = 0;
+        for (int i = 0; i < length; ++i) max = Math.max(max, inds[i]);
+
+        ByteBuffer data;
+        if (max <= 0xFFFF) {
+            data = getStagingBuffer(length * Short.BYTES);
+            ShortBuffer shorts = data.asShortBuffer();
+            for (int i = 0; i < length; ++i) shorts.put((short) inds[i]);
+            indexType = GL_UNSIGNED_SHORT;
+        } else {
+            data = getStagingBuffer(length * Integer.BYTES);
+            data.asIntBuffer().put(inds, 0, length);
+            indexType = GL_UNSIGNED_INT;
         }
+        updateIndexBuffer(data, length);
+    }
+
+    /**
+     * Sets the indices from unsigned 16-bit values
+    **/
+    public void setIndices(short[] inds, int length) {
+        ByteBuffer data = getStagingBuffer(length * Short.BYTES);
+        data.asShortBuffer().put(inds, 0, length);
+        indexType = GL_UNSIGNED_SHORT;
+        updateIndexBuffer(data, length);
+    }
+
+    private void updateIndexBuffer(ByteBuffer data, int length) {
+        numIndices = length;
+        if (indexBuffer == 0) indexBuffer = glGenBuffers();
 
         glBindVertexArray(vertexArrayObject);
-        indexBuffer = glGenBuffers();
         glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
-        glBufferData(GL_ELEMENT_ARRAY_BUFFER, data, GL_STATIC_DRAW);
+        indexCapacity = updateBuffer(GL_ELEMENT_ARRAY_BUFFER, indexCapacity, data);
+    }
 
-        MemoryUtil.memFree(data);
+    public int getIndexCount() {
+        return numIndices;
     }
 
     public void bind() {
         glBindVertexArray(vertexArrayObject);
-        for (int i = 0; i < numVertexBuffers; ++i) glEnableVertexAttribArray(i);
+        for (int i = 0; i < 32; ++i) {
+            if ((enabledAttributes & (1 << i)) != 0) glEnableVertexAttribArray(i);
+        }
+        //The current value of a disabled attribute is global state, so it has to be set for each mesh
+        if ((enabledAttributes & (1 << ATTRIBUTE_INDEX_COLOR)) == 0) {
+            glVertexAttrib3f(ATTRIBUTE_INDEX_COLOR, constantColor.x, constantColor.y, constantColor.z);
+        }
     }
 
     public void draw() {
-        glDrawElements(GL_TRIANGLES, numIndices, GL_UNSIGNED_INT, 0);
+        glDrawElements(GL_TRIANGLES, numIndices, indexType, 0);
     }
 
     public void unbind() {
-        for (int i = 0; i < numVertexBuffers; ++i) glDisableVertexAttribArray(i);
+        for (int i = 0; i < 32; ++i) {
+            if ((enabledAttributes & (1 << i)) != 0) glDisableVertexAttribArray(i);
+        }
     }
 
     @Override
@@ -0,0 +1,245 @@
+package com.tophatdemon;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+import org.joml.Vector3f;
+
+/**
+ * CPU-side vertex and index data held in growable primitive arrays, along with the bounds of its positions.
+ * It has no ties to OpenGL, so it can be built on any thread; TerrainRenderer uploads it on the GL thread.
+ * The arrays are reused between calls to clear(), so regenerating a mesh into the same
+ * instance does not allocate once the capacity has settled.
+**/
+public class MeshData {
+    protected float[] positions;
+    protected float[] colors;
+    protected float[] normals;
+    //Indices are kept as 16 bits until one doesn't fit, then all of them move to the int array
+    protected short[] shortIndices;
+    protected int[] indices;
+    protected boolean wideIndices;
+
+    protected int vertexCount;
+    protected int indexCount;
+
+    //Bounds of the vertex positions; min is greater than max while there are no vertices
+    protected float minX, minY, minZ;
+    protected float maxX, maxY, maxZ;
+
+    public MeshData() {
+        this(1024, 4096);
+    }
+
+    public MeshData(int vertexCapacity, int indexCapacity) {
+        positions = new float[Math.max(1, vertexCapacity) * 3];
+        colors = new float[Math.max(1, vertexCapacity) * 3];
+        normals = new float[Math.max(1, vertexCapacity) * 3];
+        shortIndices = new short[Math.max(1, indexCapacity)];
+        clear();
+    }
+
+    public void clear() {
+        vertexCount = 0;
+        indexCount = 0;
+        wideIndices = false;
+        minX = minY = minZ = Float.POSITIVE_INFINITY;
+        maxX = maxY = maxZ = Float.NEGATIVE_INFINITY;
+    }
+
+    /**
+     * Appends a vertex with a zero normal and returns its index
+    **/
+    public int addVertex(float px, float py, float pz, float r, float g, float b) {
+        if (vertexCount * 3 == positions.length) {
+            int newLength = positions.length * 2;
+            positions = Arrays.copyOf(positions, newLength);
+            colors = Arrays.copyOf(colors, newLength);
+            normals = Arrays.copyOf(normals, newLength);
+        }
+        int i = vertexCount * 3;
+        positions[i] = px; positions[i+1] = py; positions[i+2] = pz;
+        colors[i] = r; colors[i+1] = g; colors[i+2] = b;
+        normals[i] = 0.0f; normals[i+1] = 0.0f; normals[i+2] = 0.0f;
+        if (px < minX) minX = px;
+        if (py < minY) minY = py;
+        if (pz < minZ) minZ = pz;
+        if (px > maxX) maxX = px;
+        if (py > maxY) maxY = py;
+        if (pz > maxZ) maxZ = pz;
+        return vertexCount++;
+    }
+
+    /**
+     * Adds the given vector onto the normal of an existing vertex
+    **/
+    public void addNormal(int vertex, float nx, float ny, float nz) {
+        int i = vertex * 3;
+        normals[i] += nx; normals[i+1] += ny; normals[i+2] += nz;
+    }
+
+    public void normalizeNormals() {
+        for (int i = 0; i < vertexCount * 3; i += 3) {
+            float nx = normals[i], ny = normals[i+1], nz = normals[i+2];
+            float lengthSquared = nx * nx + ny * ny + nz * nz;
+            if (lengthSquared > 0.0f) {
+                float invLength = (float) (1.0 / Math.sqrt(lengthSquared));
+                normals[i] = nx * invLength; normals[i+1] = ny * invLength; normals[i+2] = nz * invLength;
+            }
+        }
+    }
+
+    public void addIndex(int index) {
+        if (!wideIndices) {
+            if (index <= 0xFFFF) {
+                if (indexCount == shortIndices.length) {
+                    shortIndices = Arrays.copyOf(shortIndices, shortIndices.length * 2);
+                }
+                shortIndices[indexCount++] = (short) index;
+                return;
+            }
+            widenIndices();
+        }
+        if (indexCount == indices.length) {
+            indices = Arrays.copyOf(indices, indices.length * 2);
+        }
+        indices[indexCount++] = index;
+    }
+
+    private void widenIndices() {
+        if (indices == null || indices.length < shortIndices.length) {
+            indices = new int[shortIndices.length];
+        }
+        for (int i = 0; i < indexCount; ++i) {
+            indices[i] = shortIndices[i] & 0xFFFF;
+        }
+        wideIndices = true;
+    }
+
+    //The arrays below may be longer than the data they hold; use the counts to bound reads.
+
+    public float[] getPositions() {
+        return positions;
+    }
+
+    public float[] getColors() {
+        return colors;
+    }
+
+    public float[] getNormals() {
+        return normals;
+    }
+
+    /**
+     * Whether some index is above 65535, so they are held by getIndices() instead of getShortIndices()
+    **/
+    public boolean hasWideIndices() {
+        return wideIndices;
+    }
+
+    /**
+     * The indices as unsigned 16-bit values, if hasWideIndices() is false
+    **/
+    public short[] getShortIndices() {
+        return shortIndices;
+    }
+
+    /**
+     * The indices, if hasWideIndices() is true
+    **/
+    public int[] getIndices() {
+        return indices;
+    }
+
+    public int getIndex(int i) {
+        return wideIndices ? indices[i] : shortIndices[i] & 0xFFFF;
+    }
+
+    public int getVertexCount() {
+        return vertexCount;
+    }
+
+    public int getIndexCount() {
+        return indexCount;
+    }
+
+    /**
+     * Number of bytes writeTo() writes
+    **/
+    public int getSerializedSize() {
+        return 2 * Integer.BYTES + 1 + vertexCount * 9 * Float.BYTES
+            + indexCount * (wideIndices ? Integer.BYTES : Short.BYTES);
+    }
+
+    /**
+     * Writes the vertices and indices at the buffer's position
+    **/
+    public void writeTo(ByteBuffer dest) {
+        dest.putInt(vertexCount).putInt(indexCount).put((byte) (wideIndices ? 1 : 0));
+        int floats = vertexCount * 3;
+        dest.asFloatBuffer().put(positions, 0, floats).put(colors, 0, floats).put(normals, 0, floats);
+        dest.position(dest.position() + floats * 3 * Float.BYTES);
+        if (wideIndices) {
+            dest.asIntBuffer().put(indices, 0, indexCount);
+            dest.position(dest.position() + indexCount * Integer.BYTES);
+        } else {
+            dest.asShortBuffer().put(shortIndices, 0, indexCount);
+            dest.position(dest.position() + indexCount * Short.BYTES);
+        }
+    }
+
+    /**
+     * Replaces the contents with data written by writeTo(), starting at the buffer's position
+    **/
+    public void readFrom(ByteBuffer src) {
+        clear();
+        int vertices = src.getInt(), count = src.getInt();
+        boolean wide = src.get() != 0;
+        int floats = vertices * 3;
+        if (positions.length < floats) {
+            positions = new float[floats];
+            colors = new float[floats];
+            normals = new float[floats];
+        }
+        FloatBuffer vertexData = src.asFloatBuffer();
+        vertexData.get(positions, 0, floats).get(colors, 0, floats).get(normals, 0, floats);
+        src.position(src.position() + floats * 3 * Float.BYTES);
+        vertexCount = vertices;
+        for (int i = 0; i < floats; i += 3) {
+            minX = Math.min(minX, positions[i]); maxX = Math.max(maxX, positions[i]);
+            minY = Math.min(minY, positions[i+1]); maxY = Math.max(maxY, positions[i+1]);
+            minZ = Math.min(minZ, positions[i+2]); maxZ = Math.max(maxZ, positions[i+2]);
+        }
+
+        if (wide) {
+            if (indices == null || indices.length < count) indices = new int[Math.max(count, shortIndices.length)];
+            src.asIntBuffer().get(indices, 0, count);
+            src.position(src.position() + count * Integer.BYTES);
+        } else {
+            if (shortIndices.length < count) shortIndices = new short[count];
+            src.asShortBuffer().get(shortIndices, 0, count);
+            src.position(src.position() + count * Short.BYTES);
+        }
+        wideIndices = wide;
+        indexCount = count;
+    }
+
+    public boolean isEmpty() {
+        return indexCount == 0;
+    }
+
+    /**
+     * Stores the smallest corner of the bounding box of the vertices in dest
+    **/
+    public Vector3f getBoundsMin(Vector3f dest) {
+        return dest.set(minX, minY, minZ);
+    }
+
+    /**
+     * Stores the largest corner of the bounding box of the vertices in dest
+    **/
+    public Vector3f getBoundsMax(Vector3f dest) {
+        return dest.set(maxX, maxY, maxZ);
+    }
+}
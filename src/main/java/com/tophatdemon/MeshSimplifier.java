@@ -0,0 +1,321 @@
+package com.tophatdemon;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reduces the triangle count of terrain meshes by vertex clustering. The mesh's box is split into an octree of cells,
+ * and the vertices in a cell are merged into one at their mean wherever it lies within the error bound of every
+ * vertex's tangent plane; cells that are too curved are split further, down to one grid cell. Triangles left with
+ * fewer than three corners are dropped. Flat ground collapses into a few large triangles while curved ground keeps
+ * its detail.
+ *
+ * Vertices on the faces of the box are never moved or merged, so the borders between chunks stay exactly as they
+ * were and seams don't crack. If merging would flip a triangle over, the cells around it are split and tried again.
+ * A simplifier can be shared between threads; each thread gets its own scratch space.
+**/
+public class MeshSimplifier {
+    //Octree levels below the root; 10 keeps the interleaved cell codes within 30 bits
+    private static final int MAX_DEPTH = 10;
+
+    private static final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(Scratch::new);
+
+    //Per-thread scratch space, grown to the largest mesh seen
+    private static final class Scratch {
+        float[] positions = new float[0], normals = new float[0], colors = new float[0];
+        int[] indices = new int[0];
+        //Vertices sorted by octree cell, as the cell code in the high half and the vertex in the low half
+        long[] order = new long[0];
+        //Output vertex of each input vertex, the octree level it was merged at, and the level it may merge from
+        int[] remap = new int[0], mergeLevel = new int[0], minLevel = new int[0];
+        //Output vertices
+        float[] outPositions = new float[0], outNormals = new float[0], outColors = new float[0];
+        int[] outIndices = new int[0], used = new int[0];
+        int outVertexCount;
+
+        void ensureVertices(int count) {
+            if (remap.length >= count) return;
+            int capacity = Math.max(count, remap.length * 2);
+            positions = new float[capacity * 3];
+            normals = new float[capacity * 3];
+            colors = new float[capacity * 3];
+            outPositions = new float[capacity * 3];
+            outNormals = new float[capacity * 3];
+            outColors = new float[capacity * 3];
+            order = new long[capacity];
+            remap = new int[capacity];
+            mergeLevel = new int[capacity];
+            minLevel = new int[capacity];
+            used = new int[capacity];
+        }
+
+        void ensureIndices(int count) {
+            if (indices.length >= count) return;
+            int capacity = Math.max(count, indices.length * 2);
+            indices = new int[capacity];
+            outIndices = new int[capacity];
+        }
+    }
+
+    protected final float maxError;
+    protected final AtomicLong trianglesIn = new AtomicLong();
+    protected final AtomicLong trianglesOut = new AtomicLong();
+
+    /**
+     * @param maxError How far the surface may move, in grid cells of the terrain being simplified,
+     *                 so meshes of coarser levels of detail may move further
+    **/
+    public MeshSimplifier(float maxError) {
+        this.maxError = maxError;
+    }
+
+    public float getMaxError() {
+        return maxError;
+    }
+
+    /**
+     * Simplifies a mesh polygonised from the terrain's grid, keeping the vertices on the faces of the grid fixed
+     * @return The fraction of triangles kept
+    **/
+    public float simplify(MeshData mesh, Terrain terrain) {
+        float spacing = terrain.gridSpacing;
+        float minX = terrain.meshOffset.x, minY = terrain.meshOffset.y, minZ = terrain.meshOffset.z;
+        return simplify(mesh, minX, minY, minZ,
+            terrain.gridCols * spacing + minX, terrain.gridLayers * spacing + minY, terrain.gridRows * spacing + minZ,
+            spacing, maxError * spacing);
+    }
+
+    /**
+     * Simplifies a mesh in place
+     * @param minX The box whose faces hold the fixed vertices, which should contain the whole mesh
+     * @param cellSize Size of the smallest octree cells, beyond which vertices are left alone
+     * @param maxDistance How far the mean of merged vertices may be from each of their tangent planes
+     * @return The fraction of triangles kept
+    **/
+    public float simplify(MeshData mesh, float minX, float minY, float minZ, float maxX, float maxY, float maxZ,
+                          float cellSize, float maxDistance) {
+        final int vertexCount = mesh.getVertexCount(), indexCount = mesh.getIndexCount();
+        if (indexCount == 0) return 1.0f;
+        final Scratch scratch = scratches.get();
+        scratch.ensureVertices(vertexCount);
+        scratch.ensureIndices(indexCount);
+        final float[] positions = scratch.positions, normals = scratch.normals, colors = scratch.colors;
+        final int[] indices = scratch.indices;
+        System.arraycopy(mesh.getPositions(), 0, positions, 0, vertexCount * 3);
+        System.arraycopy(mesh.getNormals(), 0, normals, 0, vertexCount * 3);
+        System.arraycopy(mesh.getColors(), 0, colors, 0, vertexCount * 3);
+        for (int i = 0; i < indexCount; ++i) indices[i] = mesh.getIndex(i);
+
+        //Deep enough for the smallest cells to be cellSize across
+        float extent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+        int depth = 0;
+        while (depth < MAX_DEPTH && cellSize * (1 << depth) < extent) ++depth;
+        final float toCell = 1.0f / cellSize;
+        final int lastCell = (1 << depth) - 1;
+
+        //Sort the free vertices by cell, so every octree cell is one run of the order
+        final long[] order = scratch.order;
+        int free = 0;
+        for (int v = 0; v < vertexCount; ++v) {
+            float px = positions[v * 3], py = positions[v * 3 + 1], pz = positions[v * 3 + 2];
+            if (px == minX || px == maxX || py == minY || py == maxY || pz == minZ || pz == maxZ) continue;
+            int cx = Math.max(0, Math.min(lastCell, (int) ((px - minX) * toCell)));
+            int cy = Math.max(0, Math.min(lastCell, (int) ((py - minY) * toCell)));
+            int cz = Math.max(0, Math.min(lastCell, (int) ((pz - minZ) * toCell)));
+            order[free++] = ((long) interleave(cx, cy, cz) << 32) | v;
+        }
+        Arrays.sort(order, 0, free);
+        Arrays.fill(scratch.minLevel, 0, vertexCount, 0);
+
+        final int[] remap = scratch.remap;
+        int outIndexCount;
+        while (true) {
+            //Fixed vertices map to themselves, first
+            scratch.outVertexCount = 0;
+            Arrays.fill(remap, 0, vertexCount, -1);
+            for (int v = 0; v < vertexCount; ++v) {
+                float px = positions[v * 3], py = positions[v * 3 + 1], pz = positions[v * 3 + 2];
+                if (px == minX || px == maxX || py == minY || py == maxY || pz == minZ || pz == maxZ) {
+                    remap[v] = addCluster(scratch, v, v + 1, false, 0);
+                }
+            }
+            cluster(scratch, 0, free, 0, depth, maxDistance);
+            outIndexCount = buildTriangles(scratch, indexCount);
+            if (outIndexCount >= 0) break;
+        }
+
+        //Write back only the vertices that are still used
+        final int[] used = scratch.used;
+        Arrays.fill(used, 0, scratch.outVertexCount, -1);
+        mesh.clear();
+        for (int i = 0; i < outIndexCount; ++i) {
+            int vertex = scratch.outIndices[i];
+            if (used[vertex] < 0) {
+                int o = vertex * 3;
+                used[vertex] = mesh.addVertex(scratch.outPositions[o], scratch.outPositions[o + 1], scratch.outPositions[o + 2],
+                    scratch.outColors[o], scratch.outColors[o + 1], scratch.outColors[o + 2]);
+                mesh.addNormal(used[vertex], scratch.outNormals[o], scratch.outNormals[o + 1], scratch.outNormals[o + 2]);
+            }
+            mesh.addIndex(used[vertex]);
+        }
+
+        int before = indexCount / 3, after = outIndexCount / 3;
+        trianglesIn.addAndGet(before);
+        trianglesOut.addAndGet(after);
+        return (float) after / before;
+    }
+
+    /**
+     * Merges the run of sorted vertices [start, end) if they are within the error bound, or splits it into the
+     * eight cells of the next level down. Vertices in the smallest cells that can't be merged are kept as they are.
+    **/
+    private static void cluster(Scratch scratch, int start, int end, int level, int depth, float maxDistance) {
+        if (end - start == 1 || fits(scratch, start, end, level, maxDistance)) {
+            addCluster(scratch, start, end, true, level);
+            return;
+        }
+        if (level == depth) {
+            for (int i = start; i < end; ++i) addCluster(scratch, i, i + 1, true, level);
+            return;
+        }
+        //The children's cell codes differ in the three bits below this level's
+        final int shift = 32 + 3 * (depth - level - 1);
+        final long[] order = scratch.order;
+        int childStart = start;
+        while (childStart < end) {
+            long child = order[childStart] >>> shift;
+            int childEnd = childStart + 1;
+            while (childEnd < end && (order[childEnd] >>> shift) == child) ++childEnd;
+            cluster(scratch, childStart, childEnd, level + 1, depth, maxDistance);
+            childStart = childEnd;
+        }
+    }
+
+    //Whether the mean of the run lies within maxDistance of every vertex's tangent plane
+    private static boolean fits(Scratch scratch, int start, int end, int level, float maxDistance) {
+        final long[] order = scratch.order;
+        final float[] positions = scratch.positions, normals = scratch.normals;
+        float sumX = 0.0f, sumY = 0.0f, sumZ = 0.0f;
+        for (int i = start; i < end; ++i) {
+            int v = (int) order[i];
+            if (scratch.minLevel[v] > level) return false;
+            sumX += positions[v * 3]; sumY += positions[v * 3 + 1]; sumZ += positions[v * 3 + 2];
+        }
+        float inv = 1.0f / (end - start);
+        float meanX = sumX * inv, meanY = sumY * inv, meanZ = sumZ * inv;
+        for (int i = start; i < end; ++i) {
+            int o = (int) order[i] * 3;
+            float dx = meanX - positions[o], dy = meanY - positions[o + 1], dz = meanZ - positions[o + 2];
+            float nx = normals[o], ny = normals[o + 1], nz = normals[o + 2];
+            float normalLengthSquared = nx * nx + ny * ny + nz * nz;
+            float distance;
+            if (normalLengthSquared > 0.0f) {
+                distance = Math.abs(dx * nx + dy * ny + dz * nz) / (float) Math.sqrt(normalLengthSquared);
+            } else {
+                distance = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+            }
+            if (distance > maxDistance) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds one output vertex for a group of input vertices, at their mean with their normals summed and normalized
+     * @param sorted Whether [start, end) indexes the sorted order rather than the vertices themselves
+     * @return The output vertex
+    **/
+    private static int addCluster(Scratch scratch, int start, int end, boolean sorted, int level) {
+        final float[] positions = scratch.positions, normals = scratch.normals, colors = scratch.colors;
+        float px = 0.0f, py = 0.0f, pz = 0.0f, nx = 0.0f, ny = 0.0f, nz = 0.0f, r = 0.0f, g = 0.0f, b = 0.0f;
+        final int out = scratch.outVertexCount++;
+        for (int i = start; i < end; ++i) {
+            int v = sorted ? (int) scratch.order[i] : i;
+            int o = v * 3;
+            px += positions[o]; py += positions[o + 1]; pz += positions[o + 2];
+            nx += normals[o]; ny += normals[o + 1]; nz += normals[o + 2];
+            r += colors[o]; g += colors[o + 1]; b += colors[o + 2];
+            scratch.remap[v] = out;
+            scratch.mergeLevel[v] = (end - start > 1) ? level : -1;
+        }
+        float inv = 1.0f / (end - start);
+        float normalLengthSquared = nx * nx + ny * ny + nz * nz;
+        float invNormal = (normalLengthSquared > 0.0f) ? (float) (1.0 / Math.sqrt(normalLengthSquared)) : 0.0f;
+        int o = out * 3;
+        scratch.outPositions[o] = px * inv; scratch.outPositions[o + 1] = py * inv; scratch.outPositions[o + 2] = pz * inv;
+        scratch.outNormals[o] = nx * invNormal; scratch.outNormals[o + 1] = ny * invNormal; scratch.outNormals[o + 2] = nz * invNormal;
+        scratch.outColors[o] = r * inv; scratch.outColors[o + 1] = g * inv; scratch.outColors[o + 2] = b * inv;
+        return out;
+    }
+
+    /**
+     * Remaps the triangles onto the output vertices, dropping those that collapsed.
+     * If any turned over, the vertices merged into their corners are held to deeper levels for the next try.
+     * @return The number of indices written, or -1 if the clustering needs another try
+    **/
+    private static int buildTriangles(Scratch scratch, int indexCount) {
+        final int[] indices = scratch.indices, remap = scratch.remap, out = scratch.outIndices;
+        final float[] positions = scratch.positions, outPositions = scratch.outPositions;
+        boolean flipped = false;
+        int count = 0;
+        for (int i = 0; i < indexCount; i += 3) {
+            int v0 = indices[i], v1 = indices[i + 1], v2 = indices[i + 2];
+            int o0 = remap[v0], o1 = remap[v1], o2 = remap[v2];
+            if (o0 == o1 || o1 == o2 || o0 == o2) continue;
+            if (dotOfNormals(positions, v0, v1, v2, outPositions, o0, o1, o2) < 0.0f) {
+                flipped = true;
+                holdDeeper(scratch, v0);
+                holdDeeper(scratch, v1);
+                holdDeeper(scratch, v2);
+                continue;
+            }
+            out[count++] = o0;
+            out[count++] = o1;
+            out[count++] = o2;
+        }
+        return flipped ? -1 : count;
+    }
+
+    //Keeps a merged vertex out of cells at the level it was merged at and above
+    private static void holdDeeper(Scratch scratch, int vertex) {
+        if (scratch.mergeLevel[vertex] >= 0) scratch.minLevel[vertex] = scratch.mergeLevel[vertex] + 1;
+    }
+
+    //Dot product of a triangle's face normal before and after remapping
+    private static float dotOfNormals(float[] p, int a, int b, int c, float[] q, int qa, int qb, int qc) {
+        a *= 3; b *= 3; c *= 3; qa *= 3; qb *= 3; qc *= 3;
+        float ax = p[b] - p[a], ay = p[b+1] - p[a+1], az = p[b+2] - p[a+2];
+        float bx = p[c] - p[a], by = p[c+1] - p[a+1], bz = p[c+2] - p[a+2];
+        float cx = q[qb] - q[qa], cy = q[qb+1] - q[qa+1], cz = q[qb+2] - q[qa+2];
+        float dx = q[qc] - q[qa], dy = q[qc+1] - q[qa+1], dz = q[qc+2] - q[qa+2];
+        return (ay * bz - az * by) * (cy * dz - cz * dy)
+             + (az * bx - ax * bz) * (cz * dx - cx * dz)
+             + (ax * by - ay * bx) * (cx * dy - cy * dx);
+    }
+
+    //Interleaves the bits of three cell coordinates, x lowest, so cells sharing a parent share the high bits
+    private static int interleave(int x, int y, int z) {
+        int code = 0;
+        for (int bit = 0; bit < MAX_DEPTH; ++bit) {
+            code |= ((x >> bit) & 1) << (bit * 3);
+            code |= ((y >> bit) & 1) << (bit * 3 + 1);
+            code |= ((z >> bit) & 1) << (bit * 3 + 2);
+        }
+        return code;
+    }
+
+    /**
+     * Fraction of triangles kept over every mesh simplified so far
+    **/
+    public float getReductionRatio() {
+        long before = trianglesIn.get();
+        return (before == 0) ? 1.0f : (float) trianglesOut.get() / before;
+    }
+
+    public long getTrianglesIn() {
+        return trianglesIn.get();
+    }
+
+    public long getTrianglesOut() {
+        return trianglesOut.get();
+    }
+}
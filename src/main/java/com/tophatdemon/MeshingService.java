@@ -0,0 +1,199 @@
+package com.tophatdemon;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Polygonises chunks on a pool of worker threads.
+ * Workers only touch the chunk's Terrain grid and a MeshData buffer; the finished buffers are
+ * queued up and uploaded to the GPU on the GL thread by UploadFinished(), a few per frame.
+**/
+public class MeshingService implements AutoCloseable {
+    /**
+     * Work run on the worker before a chunk is meshed, such as filling its grid
+    **/
+    public interface Prepare {
+        /**
+         * @param out The buffer the chunk is about to be polygonised into
+         * @return True if out was filled with a finished mesh, so the chunk doesn't need polygonising
+        **/
+        boolean run(MeshData out);
+    }
+
+    private static class Result {
+        final Chunk chunk;
+        final int version;
+        //Null if the job failed before it had a buffer
+        final MeshData data;
+        Result(Chunk chunk, int version, MeshData data) {
+            this.chunk = chunk; this.version = version; this.data = data;
+        }
+    }
+
+    protected final ExecutorService workers;
+    protected final Queue<Result> finished = new ConcurrentLinkedQueue<>();
+    //Buffers are recycled after upload so steady-state meshing doesn't allocate
+    protected final Queue<MeshData> freeData = new ConcurrentLinkedQueue<>();
+    protected final AtomicInteger pending = new AtomicInteger();
+    protected final TerrainRenderer renderer;
+    protected int uploadsPerFrame = 4;
+    protected BiConsumer<Chunk, MeshData> meshedListener;
+    protected MeshSimplifier simplifier;
+    protected int simplifyFromLod;
+    //Set by close() so queued jobs that haven't started are skipped
+    protected volatile boolean closing;
+
+    /**
+     * @param renderer Where finished meshes are uploaded
+    **/
+    public MeshingService(TerrainRenderer renderer, int threads) {
+        this.renderer = renderer;
+        AtomicInteger threadCount = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(Math.max(1, threads), (task) -> {
+            Thread thread = new Thread(task, "Mesher-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+    }
+
+    public MeshingService(TerrainRenderer renderer) {
+        this(renderer, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    public void SetUploadsPerFrame(int uploads) {
+        uploadsPerFrame = Math.max(1, uploads);
+    }
+
+    /**
+     * Sets a callback run on the worker thread whenever a chunk has been polygonised and compacted, with its new mesh.
+     * Meshes that came from a Prepare are not passed on.
+    **/
+    public void SetMeshedListener(BiConsumer<Chunk, MeshData> listener) {
+        meshedListener = listener;
+    }
+
+    /**
+     * Simplifies the meshes of chunks at or beyond a level of detail on the worker, after they are polygonised or
+     * prepared and before they are uploaded. The meshed listener still gets the full mesh. Jobs that apply edits
+     * are left alone, as the chunk is likely to be edited again soon.
+     * @param simplifier The simplifier to use, or null to stop simplifying
+    **/
+    public void SetSimplifier(MeshSimplifier simplifier, int fromLod) {
+        this.simplifier = simplifier;
+        simplifyFromLod = fromLod;
+    }
+
+    /**
+     * Number of chunks submitted whose meshes have not been uploaded yet
+    **/
+    public int GetPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * Queues the chunk to be meshed on a worker thread, after applying its pending edits. Must be called from the GL thread.
+     * If the chunk is already being meshed, it is queued again once the current job finishes.
+     * @param prepare Optional work to run on the worker before the edits and polygonising, such as filling the grid.
+     *                If the chunk is busy, it replaces any prepare work already waiting.
+     *                If it provides the mesh and there are no edits, the chunk isn't polygonised.
+    **/
+    public void Submit(Chunk chunk, Prepare prepare) {
+        if (chunk.meshing) {
+            chunk.remeshQueued = true;
+            if (prepare != null) chunk.queuedPrepare = prepare;
+            return;
+        }
+        if (prepare == null) prepare = chunk.queuedPrepare;
+        final Prepare prepareWork = prepare;
+        chunk.queuedPrepare = null;
+        chunk.meshing = true;
+        chunk.remeshQueued = false;
+        final int version = chunk.version;
+        final Runnable edits = chunk.takePendingEdits();
+        final MeshSimplifier simplify = (edits == null) ? simplifier : null;
+        final int simplifyFrom = simplifyFromLod;
+        pending.incrementAndGet();
+        workers.execute(() -> {
+            if (closing) return;
+            MeshData data = freeData.poll();
+            boolean done = false;
+            //The result is queued even if an Error escapes, or the chunk would never stop meshing
+            try {
+                if (data == null) data = new MeshData();
+                boolean meshed = prepareWork != null && prepareWork.run(data);
+                if (edits != null) {
+                    edits.run();
+                    meshed = false;
+                }
+                if (!meshed) {
+                    chunk.GetTerrain().polygonise(data);
+                    chunk.GetTerrain().Compact();
+                    if (meshedListener != null) meshedListener.accept(chunk, data);
+                }
+                Terrain terrain = chunk.GetTerrain();
+                if (simplify != null && chunk.size >> simplifyFrom >= terrain.gridCols) simplify.simplify(data, terrain);
+                done = true;
+            } catch (Exception e) {
+                e.printStackTrace(System.err);
+            } finally {
+                if (!done && data != null) data.clear();
+                finished.add(new Result(chunk, version, data));
+            }
+        });
+    }
+
+    /**
+     * Uploads up to the per-frame budget of finished meshes. Must be called from the GL thread.
+     * @return The number of meshes uploaded
+    **/
+    public int UploadFinished() {
+        int uploads = 0;
+        Result result;
+        while (uploads < uploadsPerFrame && (result = finished.poll()) != null) {
+            Chunk chunk = result.chunk;
+            chunk.meshing = false;
+            pending.decrementAndGet();
+            if (result.data == null) {
+                if (!chunk.closed && (chunk.remeshQueued || result.version != chunk.version)) Submit(chunk, null);
+                continue;
+            }
+            if (chunk.closed) {
+                freeData.add(result.data);
+                continue;
+            }
+            //Even if the chunk was edited in the meantime, this mesh is newer than the one being drawn
+            chunk.UploadMesh(result.data, renderer);
+            ++uploads;
+            freeData.add(result.data);
+            if (chunk.remeshQueued || result.version != chunk.version) {
+                Submit(chunk, null);
+            }
+        }
+        return uploads;
+    }
+
+    /**
+     * Skips the jobs that haven't started and waits for the running ones to finish. They aren't interrupted, as a
+     * job may be reading or writing a RegionStore, and an interrupt closes the channel of its region file.
+    **/
+    @Override
+    public void close() {
+        closing = true;
+        workers.shutdown();
+        try {
+            if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+                System.err.println("Meshing jobs are still running after waiting for them to finish");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finished.clear();
+        freeData.clear();
+    }
+}
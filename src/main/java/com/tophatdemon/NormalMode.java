@@ -0,0 +1,14 @@
+package com.tophatdemon;
+
+/**
+ * How a Terrain works out the normals of its surface vertices
+**/
+public enum NormalMode {
+    //Face normals of the triangles around each vertex, summed up after each triangle is emitted
+    FACE,
+    //The density gradient, by central differences, at the two corners of the vertex's edge, interpolated like its
+    //position. Smooth and independent of the triangles. At the grid's borders it reaches into the terrain's halo,
+    //sampled from whatever filled the grid, so neighboring chunks light their shared border alike; grids without
+    //a halo source fall back to one-sided differences there, which shows as a lighting seam.
+    GRADIENT,
+}
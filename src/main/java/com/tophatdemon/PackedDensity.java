@@ -0,0 +1,246 @@
+package com.tophatdemon;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A compact, read-only copy of a DensityField.
+ * Quantized modes store each sample as a signed offset from the iso level on a fixed scale covering
+ * weights from 0 to 1, so the same weight always packs to the same value and neighboring chunks
+ * still agree on their shared border. A sample never moves to the other side of the iso level,
+ * so packing doesn't change which cells the surface passes through.
+ * Grids entirely above or below the iso level keep only their six border faces, with every sample
+ * inside them collapsed to the mean, so an edit reaching across the border still starts from the
+ * same samples on both sides.
+**/
+public class PackedDensity {
+    //Approximate cost of the object headers and fields, counted in getByteSize()
+    private static final int HEADER_BYTES = 48;
+    //Bytes writeTo() puts before the samples
+    private static final int SERIALIZED_HEADER_BYTES = 2 + 3 * Integer.BYTES + 3 * Float.BYTES;
+    //How the samples are laid out in writeTo(): all of them, a single value, or the border around a single value
+    private static final int LAYOUT_FULL = 0, LAYOUT_UNIFORM = 1, LAYOUT_BORDER = 2;
+
+    protected final DensityStorage storage;
+    protected final int sizeX;
+    protected final int sizeY;
+    protected final int sizeZ;
+    protected final float isoLevel;
+    //Quantization steps per unit of weight
+    protected final float scale;
+
+    //Whether the samples inside the border faces all have the uniform value. The arrays then only hold
+    //the border samples, in the same order as in the grid, or nothing if the border has that value too.
+    protected final boolean uniform;
+    protected final float uniformValue;
+    protected final float[] floats;
+    protected final short[] shorts;
+    protected final byte[] bytes;
+
+    private PackedDensity(DensityStorage storage, DensityField field, float isoLevel, float scale,
+                          boolean uniform, float uniformValue, float[] floats, short[] shorts, byte[] bytes) {
+        this(storage, field.getSizeX(), field.getSizeY(), field.getSizeZ(), isoLevel, scale, uniform, uniformValue, floats, shorts, bytes);
+    }
+
+    private PackedDensity(DensityStorage storage, int sizeX, int sizeY, int sizeZ, float isoLevel, float scale,
+                          boolean uniform, float uniformValue, float[] floats, short[] shorts, byte[] bytes) {
+        this.storage = storage;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        this.isoLevel = isoLevel;
+        this.scale = scale;
+        this.uniform = uniform;
+        this.uniformValue = uniformValue;
+        this.floats = floats;
+        this.shorts = shorts;
+        this.bytes = bytes;
+    }
+
+    public static PackedDensity pack(DensityField field, DensityStorage storage, float isoLevel) {
+        float[] values = field.getValues();
+        float min = Float.POSITIVE_INFINITY, max = Float.NEGATIVE_INFINITY;
+        double sum = 0.0;
+        for (float v : values) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+            sum += v;
+        }
+
+        if (storage == DensityStorage.FLOAT) {
+            if (min == max) {
+                return new PackedDensity(storage, field, isoLevel, 0.0f, true, min, null, null, null);
+            }
+            return new PackedDensity(storage, field, isoLevel, 0.0f, false, 0.0f, values.clone(), null, null);
+        }
+
+        //All air or all solid: the surface doesn't pass through, so the samples inside the border collapse to the average
+        boolean collapse = max < isoLevel || min >= isoLevel;
+        int sizeX = field.getSizeX(), sizeY = field.getSizeY(), sizeZ = field.getSizeZ();
+        int count = collapse ? borderSampleCount(sizeX, sizeY, sizeZ) : values.length;
+        int maxStep = (storage == DensityStorage.QUANTIZED_16) ? Short.MAX_VALUE : Byte.MAX_VALUE;
+        float scale = maxStep / Math.max(isoLevel, 1.0f - isoLevel);
+        short[] shorts = (storage == DensityStorage.QUANTIZED_16) ? new short[count] : null;
+        byte[] bytes = (shorts == null) ? new byte[count] : null;
+        int i = 0, j = 0;
+        for (int z = 0; z < sizeZ; ++z) {
+            for (int y = 0; y < sizeY; ++y) {
+                for (int x = 0; x < sizeX; ++x, ++i) {
+                    if (collapse && !isBorder(x, y, z, sizeX, sizeY, sizeZ)) continue;
+                    int step = quantize(values[i], isoLevel, scale, maxStep);
+                    if (shorts != null) shorts[j++] = (short) step;
+                    else bytes[j++] = (byte) step;
+                }
+            }
+        }
+        float mean = collapse ? (float) (sum / values.length) : 0.0f;
+        return new PackedDensity(storage, field, isoLevel, scale, collapse, mean, null, shorts, bytes);
+    }
+
+    private static boolean isBorder(int x, int y, int z, int sizeX, int sizeY, int sizeZ) {
+        return x == 0 || y == 0 || z == 0 || x == sizeX - 1 || y == sizeY - 1 || z == sizeZ - 1;
+    }
+
+    private static int borderSampleCount(int sizeX, int sizeY, int sizeZ) {
+        return sizeX * sizeY * sizeZ - Math.max(0, sizeX - 2) * Math.max(0, sizeY - 2) * Math.max(0, sizeZ - 2);
+    }
+
+    private static int quantize(float value, float isoLevel, float scale, int maxStep) {
+        float offset = value - isoLevel;
+        int step = Math.round(offset * scale);
+        //Keep samples below the iso level from rounding up onto it
+        if (offset < 0.0f && step == 0) step = -1;
+        return Math.max(-maxStep, Math.min(maxStep, step));
+    }
+
+    /**
+     * Writes the samples back into a field of the same size
+    **/
+    public void unpackInto(DensityField field) {
+        if (field.getSizeX() != sizeX || field.getSizeY() != sizeY || field.getSizeZ() != sizeZ) {
+            throw new IllegalArgumentException("Field size does not match the packed density");
+        }
+        float[] values = field.getValues();
+        if (uniform) {
+            field.fill(uniformValue);
+            if (getStoredSampleCount() == 0) return;
+        }
+        if (floats != null) {
+            System.arraycopy(floats, 0, values, 0, values.length);
+        } else {
+            float step = 1.0f / scale;
+            int i = 0, j = 0;
+            for (int z = 0; z < sizeZ; ++z) {
+                for (int y = 0; y < sizeY; ++y) {
+                    for (int x = 0; x < sizeX; ++x, ++i) {
+                        if (uniform && !isBorder(x, y, z, sizeX, sizeY, sizeZ)) continue;
+                        values[i] = isoLevel + ((shorts != null) ? shorts[j] : bytes[j]) * step;
+                        ++j;
+                    }
+                }
+            }
+        }
+        field.updateBlockBounds();
+    }
+
+    public DensityField unpack() {
+        DensityField field = new DensityField(sizeX, sizeY, sizeZ);
+        unpackInto(field);
+        return field;
+    }
+
+    public DensityStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * True if the samples inside the border faces were collapsed to a single value
+    **/
+    public boolean isUniform() {
+        return uniform;
+    }
+
+    //Number of samples held in the arrays
+    private int getStoredSampleCount() {
+        if (floats != null) return floats.length;
+        if (shorts != null) return shorts.length;
+        if (bytes != null) return bytes.length;
+        return 0;
+    }
+
+    /**
+     * Number of bytes writeTo() writes
+    **/
+    public int getSerializedSize() {
+        return SERIALIZED_HEADER_BYTES + getStoredSampleCount() * storage.bytesPerSample;
+    }
+
+    /**
+     * Writes the packed samples and everything needed to read them back at the buffer's position
+    **/
+    public void writeTo(ByteBuffer dest) {
+        dest.put((byte) storage.ordinal()).put((byte) (!uniform ? LAYOUT_FULL : getStoredSampleCount() > 0 ? LAYOUT_BORDER : LAYOUT_UNIFORM));
+        dest.putInt(sizeX).putInt(sizeY).putInt(sizeZ);
+        dest.putFloat(isoLevel).putFloat(scale).putFloat(uniformValue);
+        if (floats != null) {
+            dest.asFloatBuffer().put(floats);
+            dest.position(dest.position() + floats.length * Float.BYTES);
+        } else if (shorts != null) {
+            dest.asShortBuffer().put(shorts);
+            dest.position(dest.position() + shorts.length * Short.BYTES);
+        } else if (bytes != null) {
+            dest.put(bytes);
+        }
+    }
+
+    /**
+     * Reads a packed copy written by writeTo(), starting at the buffer's position
+     * @throws IOException If it isn't a grid of the expected size, or is cut short, e.g. because the data is corrupt
+    **/
+    public static PackedDensity readFrom(ByteBuffer src, int expectedX, int expectedY, int expectedZ) throws IOException {
+        if (src.remaining() < SERIALIZED_HEADER_BYTES) throw new IOException("Packed density is cut short");
+        int storageIndex = src.get(), layout = src.get();
+        if (storageIndex < 0 || storageIndex >= DensityStorage.values().length || layout < LAYOUT_FULL || layout > LAYOUT_BORDER) {
+            throw new IOException("Packed density has an unknown storage mode or layout");
+        }
+        DensityStorage storage = DensityStorage.values()[storageIndex];
+        boolean uniform = layout != LAYOUT_FULL;
+        int sizeX = src.getInt(), sizeY = src.getInt(), sizeZ = src.getInt();
+        if (sizeX != expectedX || sizeY != expectedY || sizeZ != expectedZ) {
+            throw new IOException("Packed density is " + sizeX + "x" + sizeY + "x" + sizeZ + " instead of "
+                + expectedX + "x" + expectedY + "x" + expectedZ);
+        }
+        float isoLevel = src.getFloat(), scale = src.getFloat(), uniformValue = src.getFloat();
+        float[] floats = null;
+        short[] shorts = null;
+        byte[] bytes = null;
+        int count = (layout == LAYOUT_FULL) ? sizeX * sizeY * sizeZ
+            : (layout == LAYOUT_BORDER) ? borderSampleCount(sizeX, sizeY, sizeZ) : 0;
+        //Only quantized grids keep their border when collapsed
+        if ((storage == DensityStorage.FLOAT && layout == LAYOUT_BORDER) || (long) count * storage.bytesPerSample > src.remaining()) {
+            throw new IOException("Packed density samples don't match its header");
+        }
+        if (count > 0) {
+            if (storage == DensityStorage.FLOAT) {
+                floats = new float[count];
+                src.asFloatBuffer().get(floats);
+                src.position(src.position() + count * Float.BYTES);
+            } else if (storage == DensityStorage.QUANTIZED_16) {
+                shorts = new short[count];
+                src.asShortBuffer().get(shorts);
+                src.position(src.position() + count * Short.BYTES);
+            } else {
+                bytes = new byte[count];
+                src.get(bytes);
+            }
+        }
+        return new PackedDensity(storage, sizeX, sizeY, sizeZ, isoLevel, scale, uniform, uniformValue, floats, shorts, bytes);
+    }
+
+    /**
+     * Approximate heap footprint of this packed copy
+    **/
+    public int getByteSize() {
+        return HEADER_BYTES + getStoredSampleCount() * storage.bytesPerSample;
+    }
+}
@@ -0,0 +1,68 @@
+package com.tophatdemon;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands out ranges of blocks from a pool, first fit, merging ranges back together as they are freed.
+ * It only does the bookkeeping; the storage itself lives elsewhere, such as in a GL buffer.
+**/
+public class RangeAllocator {
+    protected int capacity;
+    protected int usedBlocks;
+    //Free ranges as start block -> length
+    protected final TreeMap<Integer, Integer> freeRanges = new TreeMap<>();
+
+    public RangeAllocator(int capacity) {
+        this.capacity = capacity;
+        if (capacity > 0) freeRanges.put(0, capacity);
+    }
+
+    /**
+     * @return The first block of the range, or -1 if no free range is big enough
+    **/
+    public int allocate(int blocks) {
+        for (Map.Entry<Integer, Integer> range : freeRanges.entrySet()) {
+            int start = range.getKey(), length = range.getValue();
+            if (length < blocks) continue;
+            freeRanges.remove(start);
+            if (length > blocks) freeRanges.put(start + blocks, length - blocks);
+            usedBlocks += blocks;
+            return start;
+        }
+        return -1;
+    }
+
+    public void free(int start, int blocks) {
+        if (blocks <= 0) return;
+        usedBlocks -= blocks;
+        int end = start + blocks;
+        Map.Entry<Integer, Integer> before = freeRanges.floorEntry(start);
+        if (before != null && before.getKey() + before.getValue() == start) {
+            start = before.getKey();
+            freeRanges.remove(start);
+        }
+        Integer afterLength = freeRanges.remove(end);
+        if (afterLength != null) end += afterLength;
+        freeRanges.put(start, end - start);
+    }
+
+    /**
+     * Adds blocks to the end of the pool
+    **/
+    public void grow(int newCapacity) {
+        if (newCapacity <= capacity) return;
+        int oldCapacity = capacity;
+        capacity = newCapacity;
+        usedBlocks += newCapacity - oldCapacity;
+        free(oldCapacity, newCapacity - oldCapacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getUsedBlocks() {
+        return usedBlocks;
+    }
+}
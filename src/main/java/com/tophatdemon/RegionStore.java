@@ -0,0 +1,268 @@
+package com.tophatdemon;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.CRC32;
+
+/**
+ * Saves chunk data to region files on disk, each holding the entries of REGION_SIZE^3 chunks.
+ * A region file starts with a table of where each chunk's entry is, followed by the entries themselves.
+ * Files are read through a memory mapping, so loading an entry only copies its bytes out of the page cache.
+ * An entry that outgrows the space it was given is moved to the end of the file and its old space is left unused.
+ * Entries are rewritten in place otherwise, so the table keeps a checksum of each one; an entry that was only partly
+ * written when the program stopped fails it, and is treated as missing so its chunk is generated again.
+ * Entries are opaque byte blocks to the store; the caller decides what they hold. Each can also have a small tag,
+ * kept in the table, which stays in memory once a region is open so tags can be looked up without touching the entries.
+ * Safe to use from several threads; each region file is locked while one of its entries is read or written.
+**/
+public class RegionStore implements AutoCloseable {
+    public static final int REGION_SHIFT = 3;
+    public static final int REGION_SIZE = 1 << REGION_SHIFT;
+    //Order of multi-byte values in the files, and that entries passed to Write() must use
+    public static final ByteOrder BYTE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private static final int MAGIC = 0x47525343; //"CSRG" in file order
+    private static final int VERSION = 3;
+    private static final int CHUNKS_PER_REGION = REGION_SIZE * REGION_SIZE * REGION_SIZE;
+    //Each table entry is the entry's offset in the file, its length (zero if there is none), the space reserved for it,
+    //the CRC-32 of its bytes and its tag
+    private static final int TABLE_ENTRY_BYTES = Long.BYTES + 4 * Integer.BYTES;
+    private static final int HEADER_BYTES = 2 * Integer.BYTES + CHUNKS_PER_REGION * TABLE_ENTRY_BYTES;
+    private static final String METADATA_FILE = "world.properties";
+
+    /**
+     * Reads an entry from the mapped file. The buffer is only valid during the call.
+    **/
+    public interface Reader {
+        boolean read(ByteBuffer data) throws IOException;
+    }
+
+    protected static class RegionFile {
+        final FileChannel channel;
+        final long[] offsets = new long[CHUNKS_PER_REGION];
+        final int[] lengths = new int[CHUNKS_PER_REGION];
+        final int[] capacities = new int[CHUNKS_PER_REGION];
+        final int[] checksums = new int[CHUNKS_PER_REGION];
+        final int[] tags = new int[CHUNKS_PER_REGION];
+        final ByteBuffer tableEntry = ByteBuffer.allocate(TABLE_ENTRY_BYTES).order(BYTE_ORDER);
+        //Mapping of the file, remapped when an entry past its end is read
+        MappedByteBuffer map;
+        long end;
+
+        RegionFile(FileChannel channel) {
+            this.channel = channel;
+        }
+    }
+
+    protected final Path directory;
+    //Open region files, or null for regions known to have no file yet; guarded by itself
+    protected final Map<Long, RegionFile> regions = new HashMap<>();
+
+    /**
+     * @param directory Where the region files are kept; it is created if it doesn't exist
+    **/
+    public RegionStore(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * Returns the world settings saved with WriteMetadata(), or null if there are none yet
+    **/
+    public Properties ReadMetadata() throws IOException {
+        Path path = directory.resolve(METADATA_FILE);
+        if (!Files.exists(path)) return null;
+        Properties metadata = new Properties();
+        try (InputStream in = Files.newInputStream(path)) {
+            metadata.load(in);
+        }
+        return metadata;
+    }
+
+    public void WriteMetadata(Properties metadata) throws IOException {
+        try (OutputStream out = Files.newOutputStream(directory.resolve(METADATA_FILE))) {
+            metadata.store(out, "CoalSnakes world");
+        }
+    }
+
+    /**
+     * Passes the chunk's saved entry to the reader, positioned at its start.
+     * @return The reader's result, or false if nothing is saved for the chunk or its entry fails its checksum
+    **/
+    public boolean Read(int cx, int cy, int cz, Reader reader) throws IOException {
+        RegionFile region = getRegion(cx, cy, cz, false);
+        if (region == null) return false;
+        synchronized (region) {
+            int index = entryIndex(cx, cy, cz);
+            int length = region.lengths[index];
+            if (length == 0) return false;
+            long offset = region.offsets[index];
+            if (region.map == null || offset + length > region.map.capacity()) {
+                region.map = region.channel.map(FileChannel.MapMode.READ_ONLY, 0, region.end);
+            }
+            ByteBuffer data = region.map.duplicate();
+            data.limit((int) (offset + length)).position((int) offset);
+            data = data.slice().order(BYTE_ORDER);
+            if (checksum(data) != region.checksums[index]) {
+                System.err.println("Dropped a torn entry for chunk (" + cx + ", " + cy + ", " + cz + ") from its region file");
+                //Its space is kept, so the regenerated chunk is written back over it
+                region.lengths[index] = 0;
+                return false;
+            }
+            return reader.read(data);
+        }
+    }
+
+    /**
+     * Returns the tag written with the chunk's entry, or -1 if nothing is saved for it.
+     * Only the region's table is read, and only the first time one of its chunks is looked up.
+    **/
+    public int ReadTag(int cx, int cy, int cz) throws IOException {
+        RegionFile region = getRegion(cx, cy, cz, false);
+        if (region == null) return -1;
+        synchronized (region) {
+            int index = entryIndex(cx, cy, cz);
+            return (region.lengths[index] == 0) ? -1 : region.tags[index];
+        }
+    }
+
+    /**
+     * Saves the buffer's remaining bytes as the chunk's entry, replacing any previous one
+     * @param tag A non-negative value to keep with the entry, returned by ReadTag()
+    **/
+    public void Write(int cx, int cy, int cz, ByteBuffer data, int tag) throws IOException {
+        RegionFile region = getRegion(cx, cy, cz, true);
+        synchronized (region) {
+            int index = entryIndex(cx, cy, cz);
+            int length = data.remaining();
+            int checksum = checksum(data);
+            long offset = region.offsets[index];
+            if (length > region.capacities[index]) {
+                offset = region.end;
+                region.end += length;
+                region.capacities[index] = length;
+            }
+            writeFully(region.channel, data, offset);
+
+            region.offsets[index] = offset;
+            region.lengths[index] = length;
+            region.checksums[index] = checksum;
+            region.tags[index] = tag;
+            region.tableEntry.clear();
+            region.tableEntry.putLong(offset).putInt(length).putInt(region.capacities[index]).putInt(checksum).putInt(tag).flip();
+            writeFully(region.channel, region.tableEntry, 2 * Integer.BYTES + (long) index * TABLE_ENTRY_BYTES);
+        }
+    }
+
+    private RegionFile getRegion(int cx, int cy, int cz, boolean create) throws IOException {
+        int rx = cx >> REGION_SHIFT, ry = cy >> REGION_SHIFT, rz = cz >> REGION_SHIFT;
+        long key = ChunkManager.chunkKey(rx, ry, rz);
+        synchronized (regions) {
+            RegionFile region = regions.get(key);
+            if (region != null || (!create && regions.containsKey(key))) return region;
+
+            Path path = directory.resolve("r." + rx + "." + ry + "." + rz + ".bin");
+            if (!create && !Files.exists(path)) {
+                regions.put(key, null);
+                return null;
+            }
+            region = new RegionFile(FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            try {
+                readHeader(region, path);
+            } catch (IOException e) {
+                region.channel.close();
+                throw e;
+            }
+            regions.put(key, region);
+            return region;
+        }
+    }
+
+    private static void readHeader(RegionFile region, Path path) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(BYTE_ORDER);
+        if (region.channel.size() == 0) {
+            header.putInt(MAGIC).putInt(VERSION);
+            header.position(HEADER_BYTES).flip();
+            writeFully(region.channel, header, 0);
+            region.end = HEADER_BYTES;
+            return;
+        }
+
+        while (header.hasRemaining()) {
+            if (region.channel.read(header, header.position()) < 0) {
+                throw new IOException("Region file " + path + " is truncated");
+            }
+        }
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+            throw new IOException(path + " is not a region file of a supported version");
+        }
+        region.end = region.channel.size();
+        int dropped = 0;
+        for (int i = 0; i < CHUNKS_PER_REGION; ++i) {
+            long offset = header.getLong();
+            int length = header.getInt(), capacity = header.getInt(), checksum = header.getInt(), tag = header.getInt();
+            //An entry pointing outside the file is forgotten, so its chunk is generated again instead
+            if (length < 0 || capacity < length || (length > 0 && (offset < HEADER_BYTES || offset + length > region.end))) {
+                ++dropped;
+                continue;
+            }
+            region.offsets[i] = offset;
+            region.lengths[i] = length;
+            region.capacities[i] = capacity;
+            region.checksums[i] = checksum;
+            region.tags[i] = tag;
+        }
+        if (dropped > 0) {
+            System.err.println("Dropped " + dropped + " corrupt entries from region file " + path);
+        }
+    }
+
+    //CRC-32 of the buffer's remaining bytes, leaving its position alone
+    private static int checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    //Index of the chunk in its region's table, with x varying fastest
+    private static int entryIndex(int cx, int cy, int cz) {
+        int mask = REGION_SIZE - 1;
+        return (((cz & mask) << REGION_SHIFT) + (cy & mask) << REGION_SHIFT) + (cx & mask);
+    }
+
+    @Override
+    public void close() {
+        synchronized (regions) {
+            for (RegionFile region : regions.values()) {
+                if (region == null) continue;
+                synchronized (region) {
+                    try {
+                        region.channel.close();
+                    } catch (IOException e) {
+                        e.printStackTrace(System.err);
+                    }
+                }
+            }
+            regions.clear();
+        }
+    }
+}
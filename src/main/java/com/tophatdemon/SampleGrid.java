@@ -0,0 +1,108 @@
+package com.tophatdemon;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The grid corners a DensityFunction is evaluated at: corner (x, y, z) lies at global grid coordinates
+ * (originX + x * stride, originY + y * stride, originZ + z * stride).
+ * Also lends out scratch arrays for combining sub-results, and caches each HeightFunction's columns so a
+ * height map used in several places is only evaluated once per column.
+ * Each thread has one grid, reused for every fill, so filling doesn't allocate once it has warmed up.
+**/
+public class SampleGrid {
+    private static final ThreadLocal<SampleGrid> threadGrids = ThreadLocal.withInitial(SampleGrid::new);
+
+    protected int originX, originY, originZ;
+    protected int stride = 1;
+    protected int sizeX, sizeY, sizeZ;
+
+    private final List<float[]> freeArrays = new ArrayList<>();
+    private final Map<HeightFunction, float[]> columns = new IdentityHashMap<>();
+
+    /**
+     * Returns the calling thread's grid. It is reset by the next set() on the same thread.
+    **/
+    public static SampleGrid forCurrentThread() {
+        return threadGrids.get();
+    }
+
+    /**
+     * Points the grid at new corners and drops the cached columns
+    **/
+    public SampleGrid set(int originX, int originY, int originZ, int stride, int sizeX, int sizeY, int sizeZ) {
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
+        this.stride = stride;
+        this.sizeX = sizeX;
+        this.sizeY = sizeY;
+        this.sizeZ = sizeZ;
+        freeArrays.addAll(columns.values());
+        columns.clear();
+        return this;
+    }
+
+    public float getX(int x) {
+        return originX + x * stride;
+    }
+
+    public float getY(int y) {
+        return originY + y * stride;
+    }
+
+    public float getZ(int z) {
+        return originZ + z * stride;
+    }
+
+    public int getSizeX() {
+        return sizeX;
+    }
+
+    public int getSizeY() {
+        return sizeY;
+    }
+
+    public int getSizeZ() {
+        return sizeZ;
+    }
+
+    public int getSampleCount() {
+        return sizeX * sizeY * sizeZ;
+    }
+
+    /**
+     * Lends out an array with room for every sample. It may be longer than that and holds leftover values.
+     * Hand it back with release() once done.
+    **/
+    public float[] borrow() {
+        return borrow(getSampleCount());
+    }
+
+    private float[] borrow(int length) {
+        for (int i = freeArrays.size() - 1; i >= 0; --i) {
+            if (freeArrays.get(i).length >= length) return freeArrays.remove(i);
+        }
+        return new float[length];
+    }
+
+    public void release(float[] array) {
+        freeArrays.add(array);
+    }
+
+    /**
+     * Returns the height function's value for each column, indexed x + z * sizeX, evaluating it on the first request.
+     * The array belongs to the grid and stays valid until the next set().
+    **/
+    public float[] getColumns(HeightFunction height) {
+        float[] values = columns.get(height);
+        if (values == null) {
+            values = borrow(sizeX * sizeZ);
+            height.fillColumns(values, this);
+            columns.put(height, values);
+        }
+        return values;
+    }
+}
@@ -5,6 +5,7 @@ import java.util.HashMap;
 
 import org.joml.Matrix4f;
 import org.joml.Vector3f;
+import org.joml.Vector3i;
 import org.lwjgl.system.MemoryStack;
 
 import java.nio.FloatBuffer;
@@ -42,6 +43,15 @@ public class Shader implements AutoCloseable {
         TIME("uTime"),
         AMBIENT_LIGHT("uAmbientLight"),
         SUN_DIRECTION("uSunDirection"),
+        CHUNK_PAGES("uChunkPages"),
+        PAGE_SHIFT("uPageShift"),
+        GRID_SIZE("uGridSize"),
+        GRID_ORIGIN("uGridOrigin"),
+        GRID_STRIDE("uGridStride"),
+        NOISE_OFFSET("uNoiseOffset"),
+        NOISE_SCALE("uNoiseScale"),
+        ISO_LEVEL("uIsoLevel"),
+        DENSITY("uDensity"),
         ;
         
         private String key;
@@ -65,8 +75,8 @@ public class Shader implements AutoCloseable {
         String fragmentSource = ERR_SHADER_FRAG;
 
         try {
-            vertexSource = Assets.getFileContents("shaders/default.vert");
-            fragmentSource = Assets.getFileContents("shaders/default.frag");
+            vertexSource = Assets.getFileContents(vertexPath);
+            fragmentSource = Assets.getFileContents(fragmentPath);
         } catch (Exception e) {
             e.printStackTrace(System.err);
         }
@@ -74,6 +84,14 @@ public class Shader implements AutoCloseable {
         return new Shader(vertexSource, fragmentSource);
     }
 
+    /**
+     * Loads a vertex-only program whose outputs are captured with transform feedback, interleaved in the order given.
+     * Unlike LoadFromFile() there is no fallback, since an error shader wouldn't write the outputs.
+    **/
+    public static Shader LoadTransformFeedback(String vertexPath, String ...varyings) throws Exception {
+        return new Shader(Assets.getFileContents(vertexPath), varyings);
+    }
+
     public Shader(String vertexSource, String fragmentSource) {
         vertexShader = glCreateShader(GL_VERTEX_SHADER);
         compile(vertexShader, vertexSource);
@@ -83,6 +101,25 @@ public class Shader implements AutoCloseable {
         program = glCreateProgram();
         glAttachShader(program, vertexShader);
         glAttachShader(program, fragmentShader);
+        link();
+    }
+
+    /**
+     * A program with no fragment shader, for drawing with GL_RASTERIZER_DISCARD enabled while transform
+     * feedback captures the vertex shader's outputs.
+    **/
+    public Shader(String vertexSource, String[] varyings) {
+        vertexShader = glCreateShader(GL_VERTEX_SHADER);
+        compile(vertexShader, vertexSource);
+
+        program = glCreateProgram();
+        glAttachShader(program, vertexShader);
+        //Has to be set before linking
+        glTransformFeedbackVaryings(program, varyings, GL_INTERLEAVED_ATTRIBS);
+        link();
+    }
+
+    private void link() {
         glLinkProgram(program);
 
         if (glGetProgrami(program, GL_LINK_STATUS) != GL_TRUE) {
@@ -140,6 +177,9 @@ public class Shader implements AutoCloseable {
     public void setUniform(Uniform key, Vector3f val) throws Exception {
         glUniform3f(getUniformLoc(key), val.x, val.y, val.z);
     }
+    public void setUniform(Uniform key, Vector3i val) throws Exception {
+        glUniform3i(getUniformLoc(key), val.x, val.y, val.z);
+    }
 
     @Override
     public void close() {
@@ -0,0 +1,167 @@
+package com.tophatdemon;
+
+/**
+ * Fills whole grids with 3D simplex noise, giving bit-for-bit the same values as JOML's SimplexNoise.noise(x, y, z).
+ * The coordinates along each axis are computed once per grid instead of once per corner, the gradients are kept in
+ * flat tables instead of objects, and the permutation table is doubled so the hashing needs no masking.
+ * Nothing is allocated per call once a thread's coordinate table is big enough.
+**/
+public class SimplexNoiseBatch {
+    private static final float F3 = 0.33333334f;
+    private static final float G3 = 0.16666667f;
+
+    //Ken Perlin's permutation, the same one JOML uses
+    private static final int[] P = {
+        151, 160, 137, 91, 90, 15, 131, 13, 201, 95, 96, 53, 194, 233, 7, 225,
+        140, 36, 103, 30, 69, 142, 8, 99, 37, 240, 21, 10, 23, 190, 6, 148,
+        247, 120, 234, 75, 0, 26, 197, 62, 94, 252, 219, 203, 117, 35, 11, 32,
+        57, 177, 33, 88, 237, 149, 56, 87, 174, 20, 125, 136, 171, 168, 68, 175,
+        74, 165, 71, 134, 139, 48, 27, 166, 77, 146, 158, 231, 83, 111, 229, 122,
+        60, 211, 133, 230, 220, 105, 92, 41, 55, 46, 245, 40, 244, 102, 143, 54,
+        65, 25, 63, 161, 1, 216, 80, 73, 209, 76, 132, 187, 208, 89, 18, 169,
+        200, 196, 135, 130, 116, 188, 159, 86, 164, 100, 109, 198, 173, 186, 3, 64,
+        52, 217, 226, 250, 124, 123, 5, 202, 38, 147, 118, 126, 255, 82, 85, 212,
+        207, 206, 59, 227, 47, 16, 58, 17, 182, 189, 28, 42, 223, 183, 170, 213,
+        119, 248, 152, 2, 44, 154, 163, 70, 221, 153, 101, 155, 167, 43, 172, 9,
+        129, 22, 39, 253, 19, 98, 108, 110, 79, 113, 224, 232, 178, 185, 112, 104,
+        218, 246, 97, 228, 251, 34, 242, 193, 238, 210, 144, 12, 191, 179, 162, 241,
+        81, 51, 145, 235, 249, 14, 239, 107, 49, 192, 214, 31, 181, 199, 106, 157,
+        184, 84, 204, 176, 115, 121, 50, 45, 127, 4, 150, 254, 138, 236, 205, 93,
+        222, 114, 67, 29, 24, 72, 243, 141, 128, 195, 78, 66, 215, 61, 156, 180,
+    };
+    //Doubled so (i + PERM[j]) never needs wrapping for i, j < 257
+    private static final int[] PERM = new int[512];
+    //Index of each corner's gradient, i.e. PERM modulo the number of gradients
+    private static final int[] PERM_MOD_12 = new int[512];
+    //The 12 gradients towards the edges of a cube, as separate components
+    private static final float[] GRAD_X = { 1, -1, 1, -1, 1, -1, 1, -1, 0, 0, 0, 0 };
+    private static final float[] GRAD_Y = { 1, 1, -1, -1, 0, 0, 0, 0, 1, -1, 1, -1 };
+    private static final float[] GRAD_Z = { 0, 0, 0, 0, 1, 1, -1, -1, 1, 1, -1, -1 };
+
+    static {
+        for (int i = 0; i < 512; ++i) {
+            PERM[i] = P[i & 255];
+            PERM_MOD_12[i] = PERM[i] % 12;
+        }
+    }
+
+    private static final ThreadLocal<float[]> coordinates = ThreadLocal.withInitial(() -> new float[0]);
+
+    /**
+     * Fills dest, with x varying fastest, with the noise at ((originX + x * stride + offset) * scale, ...)
+     * for each grid corner (x, y, z), mapped from [-1, 1] to [0, 1].
+     * Matches calling SimplexNoise.noise() with the same expressions for each corner.
+    **/
+    public static void fill(float[] dest, int sizeX, int sizeY, int sizeZ,
+                            int originX, int originY, int originZ, int stride, float offset, float scale) {
+        float[] coords = axisCoordinates(sizeX, sizeY, sizeZ, originX, originY, originZ, stride, offset, scale);
+        int offsetY = sizeX, offsetZ = sizeX + sizeY;
+        int i = 0;
+        for (int z = 0; z < sizeZ; ++z) {
+            float zin = coords[offsetZ + z];
+            for (int y = 0; y < sizeY; ++y) {
+                float yin = coords[offsetY + y];
+                for (int x = 0; x < sizeX; ++x, ++i) {
+                    dest[i] = (noise(coords[x], yin, zin) + 1.0f) / 2.0f;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the noise in [-1, 1] at the same points as fill(), times the amplitude, to dest. For summing octaves.
+    **/
+    public static void accumulate(float[] dest, int sizeX, int sizeY, int sizeZ,
+                                  int originX, int originY, int originZ, int stride, float offset, float scale, float amplitude) {
+        float[] coords = axisCoordinates(sizeX, sizeY, sizeZ, originX, originY, originZ, stride, offset, scale);
+        int offsetY = sizeX, offsetZ = sizeX + sizeY;
+        int i = 0;
+        for (int z = 0; z < sizeZ; ++z) {
+            float zin = coords[offsetZ + z];
+            for (int y = 0; y < sizeY; ++y) {
+                float yin = coords[offsetY + y];
+                for (int x = 0; x < sizeX; ++x, ++i) {
+                    dest[i] += noise(coords[x], yin, zin) * amplitude;
+                }
+            }
+        }
+    }
+
+    //The sample coordinates along X, then Y, then Z, in one per-thread array
+    private static float[] axisCoordinates(int sizeX, int sizeY, int sizeZ,
+                                           int originX, int originY, int originZ, int stride, float offset, float scale) {
+        float[] coords = coordinates.get();
+        if (coords.length < sizeX + sizeY + sizeZ) {
+            coords = new float[sizeX + sizeY + sizeZ];
+            coordinates.set(coords);
+        }
+        int offsetY = sizeX, offsetZ = sizeX + sizeY;
+        for (int x = 0; x < sizeX; ++x) coords[x] = (originX + x * stride + offset) * scale;
+        for (int y = 0; y < sizeY; ++y) coords[offsetY + y] = (originY + y * stride + offset) * scale;
+        for (int z = 0; z < sizeZ; ++z) coords[offsetZ + z] = (originZ + z * stride + offset) * scale;
+        return coords;
+    }
+
+    /**
+     * 3D simplex noise in [-1, 1], with the same operations in the same order as JOML's so the results are identical
+    **/
+    public static float noise(float xin, float yin, float zin) {
+        //Skew the input space to find the simplex cell
+        float s = (xin + yin + zin) * F3;
+        int i = fastFloor(xin + s);
+        int j = fastFloor(yin + s);
+        int k = fastFloor(zin + s);
+        float t = (i + j + k) * G3;
+        float x0 = xin - (i - t);
+        float y0 = yin - (j - t);
+        float z0 = zin - (k - t);
+
+        //Offsets of the second and third corners of the simplex the point is in
+        int i1, j1, k1, i2, j2, k2;
+        if (x0 >= y0) {
+            if (y0 >= z0) {
+                i1 = 1; j1 = 0; k1 = 0; i2 = 1; j2 = 1; k2 = 0;
+            } else if (x0 >= z0) {
+                i1 = 1; j1 = 0; k1 = 0; i2 = 1; j2 = 0; k2 = 1;
+            } else {
+                i1 = 0; j1 = 0; k1 = 1; i2 = 1; j2 = 0; k2 = 1;
+            }
+        } else {
+            if (y0 < z0) {
+                i1 = 0; j1 = 0; k1 = 1; i2 = 0; j2 = 1; k2 = 1;
+            } else if (x0 < z0) {
+                i1 = 0; j1 = 1; k1 = 0; i2 = 0; j2 = 1; k2 = 1;
+            } else {
+                i1 = 0; j1 = 1; k1 = 0; i2 = 1; j2 = 1; k2 = 0;
+            }
+        }
+        float x1 = x0 - i1 + G3, y1 = y0 - j1 + G3, z1 = z0 - k1 + G3;
+        float x2 = x0 - i2 + F3, y2 = y0 - j2 + F3, z2 = z0 - k2 + F3;
+        float x3 = x0 - 1.0f + 0.5f, y3 = y0 - 1.0f + 0.5f, z3 = z0 - 1.0f + 0.5f;
+
+        int ii = i & 255, jj = j & 255, kk = k & 255;
+        int gi0 = PERM_MOD_12[ii + PERM[jj + PERM[kk]]];
+        int gi1 = PERM_MOD_12[ii + i1 + PERM[jj + j1 + PERM[kk + k1]]];
+        int gi2 = PERM_MOD_12[ii + i2 + PERM[jj + j2 + PERM[kk + k2]]];
+        int gi3 = PERM_MOD_12[ii + 1 + PERM[jj + 1 + PERM[kk + 1]]];
+
+        float n0 = corner(gi0, x0, y0, z0);
+        float n1 = corner(gi1, x1, y1, z1);
+        float n2 = corner(gi2, x2, y2, z2);
+        float n3 = corner(gi3, x3, y3, z3);
+        return 32.0f * (n0 + n1 + n2 + n3);
+    }
+
+    //Contribution of one simplex corner
+    private static float corner(int gi, float x, float y, float z) {
+        float t = 0.6f - x * x - y * y - z * z;
+        if (t < 0.0f) return 0.0f;
+        t *= t;
+        return t * t * (GRAD_X[gi] * x + GRAD_Y[gi] * y + GRAD_Z[gi] * z);
+    }
+
+    private static int fastFloor(float x) {
+        int xi = (int) x;
+        return x < xi ? xi - 1 : xi;
+    }
+}
@@ -0,0 +1,16 @@
+package com.tophatdemon;
+
+/**
+ * Turns the grid of a Terrain into a surface mesh. Implementations hold no state of their own between calls,
+ * so one extractor can serve every chunk on every meshing thread.
+**/
+public interface SurfaceExtractor {
+    SurfaceExtractor MARCHING_CUBES = new MarchingCubesExtractor();
+    SurfaceExtractor SURFACE_NETS = new SurfaceNetsExtractor();
+
+    /**
+     * Writes the surface of the terrain's grid into out, replacing whatever it held. The mesh should follow the
+     * terrain's iso level, mesh offset, normal mode and border caps, with triangles and normals facing into the solid.
+    **/
+    void extract(Terrain terrain, MeshData out);
+}
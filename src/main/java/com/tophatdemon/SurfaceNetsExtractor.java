@@ -0,0 +1,400 @@
+package com.tophatdemon;
+
+import java.util.Arrays;
+
+/**
+ * Surface nets: one vertex in each cell the surface passes through, at the mean of the points where it crosses
+ * the cell's edges, and a quad across each crossed edge joining the four cells around it. That is one vertex per
+ * surface cell against one per crossed edge, or three per triangle without sharing, for marching cubes, and
+ * somewhat fewer triangles, with far fewer slivers among them. Sharp features get rounded off.
+ * Vertices are always shared.
+ *
+ * The quads across edges on the grid's faces would need the next grid's cells, so they are left out. Instead the
+ * vertices of cells on a face are moved onto it and placed from the samples on the face alone. The next chunk
+ * places its own vertices on the face the same way, so the missing quads would have no area and the chunks
+ * meet without cracks.
+**/
+public class SurfaceNetsExtractor implements SurfaceExtractor {
+    private static final int EDGE_COUNT = MarchingCubes.EDGE_AXIS.length;
+    private static final byte[][] EDGE_OFFSETS = { MarchingCubes.EDGE_OFFSET_X, MarchingCubes.EDGE_OFFSET_Y, MarchingCubes.EDGE_OFFSET_Z };
+    //For quads across each axis, the two axes along the quad, ordered so that u x v points along the axis
+    private static final int[][] FACE_AXES = { { 1, 2 }, { 2, 0 }, { 0, 1 } };
+    //The corners one step along each axis from a cell's first corner, which is corner 0
+    private static final int[] AXIS_CORNERS = { 1, 4, 3 };
+
+    private static final ThreadLocal<Scratch> scratches = ThreadLocal.withInitial(Scratch::new);
+
+    //Per-thread scratch space, reused for every grid of the same size
+    private static final class Scratch {
+        //Vertex index of each cell in the current and previous z slices, or -1 where the surface doesn't pass
+        int[] lower, upper;
+        //Points of the cells along a capped face, as (u, v) pairs in grid units, and whether each face square is all solid
+        float[] facePoints;
+        boolean[] faceSolid;
+        final int[] cornerOffsets = new int[8];
+        final int[] cellCoord = new int[3];
+        final int[] cells = new int[3];
+        final int[] sides = new int[3];
+        final float[] point = new float[3];
+        final int[] capSquares = new int[4];
+    }
+
+    @Override
+    public void extract(Terrain terrain, MeshData out) {
+        out.clear();
+
+        final DensityField density = terrain.GetDensity();
+        final float[] weights = density.getValues();
+        final float isoLevel = terrain.isoLevel;
+        final float spacing = terrain.gridSpacing;
+        final float offsetX = terrain.meshOffset.x, offsetY = terrain.meshOffset.y, offsetZ = terrain.meshOffset.z;
+        final int cols = terrain.gridCols, layers = terrain.gridLayers, rows = terrain.gridRows;
+        final int[] strides = { 1, density.getStrideY(), density.getStrideZ() };
+        final boolean faceNormals = terrain.normalMode == NormalMode.FACE;
+
+        final Scratch scratch = scratches.get();
+        final int sliceSize = cols * layers;
+        if (scratch.lower == null || scratch.lower.length != sliceSize) {
+            scratch.lower = new int[sliceSize];
+            scratch.upper = new int[sliceSize];
+        }
+        final int[] cornerOffsets = scratch.cornerOffsets;
+        for (int c = 0; c < 8; ++c) {
+            cornerOffsets[c] = density.index(MarchingCubes.CORNER_X[c], MarchingCubes.CORNER_Y[c], MarchingCubes.CORNER_Z[c]);
+        }
+        final int[] cells = scratch.cells;
+        cells[0] = cols; cells[1] = layers; cells[2] = rows;
+        final int[] coord = scratch.cellCoord;
+        final float[] point = scratch.point;
+        final int blocksX = density.getBlocksX();
+        Arrays.fill(scratch.upper, -1);
+
+        for (int z = 0; z < rows; ++z) {
+            //Roll the slices forward so the cells of the last layer become the lower ones
+            int[] lower = scratch.upper, upper = scratch.lower;
+            scratch.lower = lower;
+            scratch.upper = upper;
+            Arrays.fill(upper, -1);
+            final int blockZ = z >> DensityField.BLOCK_SHIFT;
+            for (int y = 0; y < layers; ++y) {
+                final int blockY = y >> DensityField.BLOCK_SHIFT;
+                final int rowStart = density.index(0, y, z);
+                for (int blockX = 0; blockX < blocksX; ++blockX) {
+                    if (!density.blockMayCross(blockX, blockY, blockZ, isoLevel)) continue;
+                    int xStart = blockX << DensityField.BLOCK_SHIFT, xEnd = Math.min(cols, xStart + DensityField.BLOCK_SIZE);
+                    for (int x = xStart; x < xEnd; ++x) {
+                        final int cell = rowStart + x;
+                        final int mask = cornerMask(weights, cell, cornerOffsets, isoLevel);
+                        if (mask == 0 || mask == 0xFF) continue;
+
+                        coord[0] = x; coord[1] = y; coord[2] = z;
+                        placeVertex(weights, cell, cornerOffsets, coord, cells, mask, isoLevel, false, scratch.sides, point);
+                        int vertex = out.addVertex(
+                            (x + point[0]) * spacing + offsetX,
+                            (y + point[1]) * spacing + offsetY,
+                            (z + point[2]) * spacing + offsetZ,
+                            0.5f, 0.25f, 0.1f);
+                        if (!faceNormals) addGradientNormal(terrain, out, vertex, weights, cell, coord, strides, point);
+                        upper[y * cols + x] = vertex;
+
+                        //Join the cells around each edge leaving the cell's first corner, if the surface crosses it.
+                        //The other three cells come before this one, so their vertices are already placed.
+                        for (int axis = 0; axis < 3; ++axis) {
+                            if (((mask ^ (mask >> AXIS_CORNERS[axis])) & 1) == 0) continue;
+                            final int u = FACE_AXES[axis][0], v = FACE_AXES[axis][1];
+                            if (coord[u] == 0 || coord[v] == 0) continue;
+                            int v0 = cellVertex(lower, upper, coord, u, v, 1, 1, cols);
+                            int v1 = cellVertex(lower, upper, coord, u, v, 0, 1, cols);
+                            int v3 = cellVertex(lower, upper, coord, u, v, 1, 0, cols);
+                            //Counterclockwise around the axis faces along it, so flip when the solid is on the first corner's side
+                            boolean flip = (mask & 1) == 0;
+                            addQuad(out, v0, flip ? v3 : v1, vertex, flip ? v1 : v3, faceNormals);
+                        }
+                    }
+                }
+            }
+        }
+
+        if (faceNormals) out.normalizeNormals();
+        if (terrain.capFaces != 0) addBorderCaps(terrain, density, out, scratch);
+    }
+
+    /**
+     * Returns which of the cell's corners are below the iso level, as bits in the corner order of the marching cubes tables
+    **/
+    private static int cornerMask(float[] weights, int cell, int[] cornerOffsets, float isoLevel) {
+        int mask = 0;
+        for (int c = 0; c < 8; ++c) {
+            if (weights[cell + cornerOffsets[c]] < isoLevel) mask |= 1 << c;
+        }
+        return mask;
+    }
+
+    //Vertex of the cell du steps back along u and dv steps back along v from the one at coord
+    private static int cellVertex(int[] lower, int[] upper, int[] coord, int u, int v, int du, int dv, int cols) {
+        int x = coord[0], y = coord[1], z = coord[2];
+        if (u == 0) x -= du; else if (u == 1) y -= du; else z -= du;
+        if (v == 0) x -= dv; else if (v == 1) y -= dv; else z -= dv;
+        return ((z == coord[2]) ? upper : lower)[y * cols + x];
+    }
+
+    /**
+     * Works out where the vertex of the cell at coord goes, relative to the cell's first corner in grid units.
+     * Inside the grid it is the mean of the crossings on the cell's edges. A cell on some of the grid's faces,
+     * where any of those faces has a crossing in the cell, is instead placed on all of them: at the mean of the
+     * crossings on the edge or face they share, or in its middle if there are none there. That only depends on
+     * samples the chunks across those faces have too, so they place their vertices at the same point.
+     * @param anywhere Place cells on the grid's faces onto them even if none of the faces has a crossing, for caps
+    **/
+    private static void placeVertex(float[] weights, int cell, int[] cornerOffsets, int[] coord, int[] cells, int mask,
+                                    float isoLevel, boolean anywhere, int[] sides, float[] point) {
+        //Which face of the grid the cell is on along each axis: -1 for neither, 0 for the min face, 1 for the max face
+        boolean border = false;
+        for (int axis = 0; axis < 3; ++axis) {
+            sides[axis] = (coord[axis] == 0) ? 0 : (coord[axis] == cells[axis] - 1) ? 1 : -1;
+            if (sides[axis] >= 0) border = true;
+        }
+
+        float sumX = 0.0f, sumY = 0.0f, sumZ = 0.0f;
+        float sharedX = 0.0f, sharedY = 0.0f, sharedZ = 0.0f;
+        int count = 0, sharedCount = 0;
+        boolean onFace = false;
+        for (int e = 0; e < EDGE_COUNT; ++e) {
+            int c0 = MarchingCubes.EDGE_CORNER_0[e], c1 = MarchingCubes.EDGE_CORNER_1[e];
+            if ((((mask >> c0) ^ (mask >> c1)) & 1) == 0) continue;
+            float w0 = weights[cell + cornerOffsets[c0]], w1 = weights[cell + cornerOffsets[c1]];
+            float factor = (isoLevel - w0) / (w1 - w0);
+            int edgeAxis = MarchingCubes.EDGE_AXIS[e];
+            float ex = MarchingCubes.EDGE_OFFSET_X[e], ey = MarchingCubes.EDGE_OFFSET_Y[e], ez = MarchingCubes.EDGE_OFFSET_Z[e];
+            if (edgeAxis == 0) ex += factor; else if (edgeAxis == 1) ey += factor; else ez += factor;
+            sumX += ex; sumY += ey; sumZ += ez;
+            ++count;
+            if (!border) continue;
+
+            //An edge lies on a face of the grid if it runs along it on the cell's side
+            boolean onAll = true;
+            for (int axis = 0; axis < 3; ++axis) {
+                if (sides[axis] < 0) continue;
+                if (edgeAxis != axis && EDGE_OFFSETS[axis][e] == sides[axis]) onFace = true; else onAll = false;
+            }
+            if (onAll) {
+                sharedX += ex; sharedY += ey; sharedZ += ez;
+                ++sharedCount;
+            }
+        }
+
+        if (border && (onFace || anywhere)) {
+            if (sharedCount > 0) {
+                float inv = 1.0f / sharedCount;
+                point[0] = sharedX * inv; point[1] = sharedY * inv; point[2] = sharedZ * inv;
+            } else {
+                point[0] = point[1] = point[2] = 0.5f;
+            }
+            //Exactly on the faces, whatever the rounding of the means
+            for (int axis = 0; axis < 3; ++axis) {
+                if (sides[axis] >= 0) point[axis] = sides[axis];
+            }
+        } else {
+            float inv = 1.0f / count;
+            point[0] = sumX * inv; point[1] = sumY * inv; point[2] = sumZ * inv;
+        }
+    }
+
+    /**
+     * Sets the vertex's normal to the density gradient at its position, blended from the gradients at the cell's
+     * corners, normalized. The weights grow into the solid, so it points into the solid.
+    **/
+    private static void addGradientNormal(Terrain terrain, MeshData out, int vertex, float[] weights, int cell, int[] coord,
+                                          int[] strides, float[] point) {
+        float nx = 0.0f, ny = 0.0f, nz = 0.0f;
+        for (int c = 0; c < 8; ++c) {
+            int cx = MarchingCubes.CORNER_X[c], cy = MarchingCubes.CORNER_Y[c], cz = MarchingCubes.CORNER_Z[c];
+            float blend = (cx != 0 ? point[0] : 1.0f - point[0])
+                        * (cy != 0 ? point[1] : 1.0f - point[1])
+                        * (cz != 0 ? point[2] : 1.0f - point[2]);
+            if (blend == 0.0f) continue;
+            int index = cell + cx * strides[0] + cy * strides[1] + cz * strides[2];
+            int x = coord[0] + cx, y = coord[1] + cy, z = coord[2] + cz;
+            nx += terrain.gradient(weights, index, x, y, z, 0) * blend;
+            ny += terrain.gradient(weights, index, x, y, z, 1) * blend;
+            nz += terrain.gradient(weights, index, x, y, z, 2) * blend;
+        }
+        float lengthSquared = nx * nx + ny * ny + nz * nz;
+        if (lengthSquared > 0.0f) {
+            float invLength = (float) (1.0 / Math.sqrt(lengthSquared));
+            out.addNormal(vertex, nx * invLength, ny * invLength, nz * invLength);
+        }
+    }
+
+    //Adds a quad wound v0, v1, v2, v3, split along its shorter diagonal
+    private static void addQuad(MeshData out, int v0, int v1, int v2, int v3, boolean faceNormals) {
+        float[] p = out.getPositions();
+        if (distanceSquared(p, v0, v2) > distanceSquared(p, v1, v3)) {
+            int first = v0;
+            v0 = v1; v1 = v2; v2 = v3; v3 = first;
+        }
+        addTriangle(out, p, v0, v1, v2, faceNormals);
+        addTriangle(out, p, v0, v2, v3, faceNormals);
+    }
+
+    private static void addTriangle(MeshData out, float[] p, int i0, int i1, int i2, boolean faceNormals) {
+        out.addIndex(i0);
+        out.addIndex(i1);
+        out.addIndex(i2);
+        if (!faceNormals) return;
+        //Sum the unscaled face normals so larger triangles weigh more, then normalize at the end
+        int v0 = i0 * 3, v1 = i1 * 3, v2 = i2 * 3;
+        float ax = p[v1] - p[v0], ay = p[v1+1] - p[v0+1], az = p[v1+2] - p[v0+2];
+        float bx = p[v2] - p[v0], by = p[v2+1] - p[v0+1], bz = p[v2+2] - p[v0+2];
+        float nx = ay * bz - az * by;
+        float ny = az * bx - ax * bz;
+        float nz = ax * by - ay * bx;
+        out.addNormal(i0, nx, ny, nz);
+        out.addNormal(i1, nx, ny, nz);
+        out.addNormal(i2, nx, ny, nz);
+    }
+
+    private static float distanceSquared(float[] p, int a, int b) {
+        float dx = p[a * 3] - p[b * 3], dy = p[a * 3 + 1] - p[b * 3 + 1], dz = p[a * 3 + 2] - p[b * 3 + 2];
+        return dx * dx + dy * dy + dz * dz;
+    }
+
+    /**
+     * Closes off the solid part of each capped face with the face's own surface net: every solid sample on the face
+     * gets the polygon joining the points of the four face cells around it. Where the surface meets the face, those
+     * points are its vertices, so the caps meet it exactly. Runs of samples inside the solid are merged into one quad.
+    **/
+    private static void addBorderCaps(Terrain terrain, DensityField density, MeshData out, Scratch scratch) {
+        final float[] weights = density.getValues();
+        final float isoLevel = terrain.isoLevel;
+        final int[] cells = scratch.cells;
+        final int[] coord = scratch.cellCoord;
+        final int[] cornerOffsets = scratch.cornerOffsets;
+        final float[] point = scratch.point;
+        for (int face = 0; face < 6; ++face) {
+            if ((terrain.capFaces & (1 << face)) == 0) continue;
+            final int axis = face >> 1;
+            final boolean maxSide = (face & 1) != 0;
+            final int u = FACE_AXES[axis][0], v = FACE_AXES[axis][1];
+            final int cellsU = cells[u], cellsV = cells[v];
+            if (scratch.facePoints == null || scratch.facePoints.length < cellsU * cellsV * 2) {
+                scratch.facePoints = new float[cellsU * cellsV * 2];
+                scratch.faceSolid = new boolean[cellsU * cellsV];
+            }
+            final float[] points = scratch.facePoints;
+            final boolean[] solid = scratch.faceSolid;
+
+            //Place a point for each cell along the face
+            coord[axis] = maxSide ? cells[axis] - 1 : 0;
+            for (int j = 0; j < cellsV; ++j) {
+                for (int i = 0; i < cellsU; ++i) {
+                    coord[u] = i;
+                    coord[v] = j;
+                    int cell = density.index(coord[0], coord[1], coord[2]);
+                    int mask = cornerMask(weights, cell, cornerOffsets, isoLevel);
+                    placeVertex(weights, cell, cornerOffsets, coord, cells, mask, isoLevel, true, scratch.sides, point);
+                    int square = j * cellsU + i;
+                    points[square * 2] = i + point[u];
+                    points[square * 2 + 1] = j + point[v];
+                    solid[square] = (faceCornerBits(mask, axis, maxSide) == 0);
+                }
+            }
+
+            //Join the points around each solid sample on the face
+            final int facePosition = maxSide ? cells[axis] : 0;
+            for (int j = 0; j <= cellsV; ++j) {
+                int runStart = -1;
+                for (int i = 0; i <= cellsU + 1; ++i) {
+                    boolean sampleSolid = false, inside = false;
+                    if (i <= cellsU) {
+                        coord[axis] = facePosition;
+                        coord[u] = i;
+                        coord[v] = j;
+                        sampleSolid = density.get(coord[0], coord[1], coord[2]) >= isoLevel;
+                        inside = sampleSolid
+                            && solid[square(i - 1, j - 1, cellsU, cellsV)] && solid[square(i, j - 1, cellsU, cellsV)]
+                            && solid[square(i, j, cellsU, cellsV)] && solid[square(i - 1, j, cellsU, cellsV)];
+                    }
+                    if (inside) {
+                        if (runStart < 0) runStart = i;
+                        continue;
+                    }
+                    if (runStart >= 0) {
+                        addCapPolygon(out, scratch, axis, maxSide, facePosition, terrain,
+                            square(runStart - 1, j - 1, cellsU, cellsV), square(i - 1, j - 1, cellsU, cellsV),
+                            square(i - 1, j, cellsU, cellsV), square(runStart - 1, j, cellsU, cellsV));
+                        runStart = -1;
+                    }
+                    if (sampleSolid) {
+                        addCapPolygon(out, scratch, axis, maxSide, facePosition, terrain,
+                            square(i - 1, j - 1, cellsU, cellsV), square(i, j - 1, cellsU, cellsV),
+                            square(i, j, cellsU, cellsV), square(i - 1, j, cellsU, cellsV));
+                    }
+                }
+            }
+        }
+    }
+
+    //Index of the face cell at (i, j), clamped onto the face
+    private static int square(int i, int j, int cellsU, int cellsV) {
+        return Math.max(0, Math.min(cellsV - 1, j)) * cellsU + Math.max(0, Math.min(cellsU - 1, i));
+    }
+
+    //The bits of a cell mask for the corners on one of its faces
+    private static int faceCornerBits(int mask, int axis, boolean maxSide) {
+        int bits = 0;
+        for (int c = 0; c < 8; ++c) {
+            int corner = (axis == 0) ? MarchingCubes.CORNER_X[c] : (axis == 1) ? MarchingCubes.CORNER_Y[c] : MarchingCubes.CORNER_Z[c];
+            if ((corner != 0) == maxSide) bits |= mask & (1 << c);
+        }
+        return bits;
+    }
+
+    /**
+     * Fans the points of four face cells, counterclockwise in (u, v), into triangles on the face.
+     * Cells that repeat because they were clamped onto the face are skipped.
+    **/
+    private static void addCapPolygon(MeshData out, Scratch scratch, int axis, boolean maxSide, int facePosition,
+                                      Terrain terrain, int s0, int s1, int s2, int s3) {
+        final int u = FACE_AXES[axis][0], v = FACE_AXES[axis][1];
+        final float[] points = scratch.facePoints;
+        final float[] position = scratch.point;
+        final int[] squares = scratch.capSquares;
+        int count = 0;
+        count = addUnique(squares, count, s0);
+        count = addUnique(squares, count, s1);
+        count = addUnique(squares, count, s2);
+        count = addUnique(squares, count, s3);
+        if (count > 1 && squares[count - 1] == squares[0]) --count;
+        if (count < 3) return;
+
+        //Into the grid: along the axis from the min face, against it from the max face
+        final float inward = maxSide ? -1.0f : 1.0f;
+        final int first = out.getVertexCount();
+        for (int p = 0; p < count; ++p) {
+            int square = squares[p];
+            position[axis] = facePosition;
+            position[u] = points[square * 2];
+            position[v] = points[square * 2 + 1];
+            int vertex = out.addVertex(
+                position[0] * terrain.gridSpacing + terrain.meshOffset.x,
+                position[1] * terrain.gridSpacing + terrain.meshOffset.y,
+                position[2] * terrain.gridSpacing + terrain.meshOffset.z,
+                0.5f, 0.25f, 0.1f);
+            out.addNormal(vertex, axis == 0 ? inward : 0.0f, axis == 1 ? inward : 0.0f, axis == 2 ? inward : 0.0f);
+        }
+        //Counterclockwise in (u, v) winds towards +axis, which faces into the grid on the min face
+        for (int p = 1; p + 1 < count; ++p) {
+            out.addIndex(first);
+            out.addIndex(maxSide ? first + p + 1 : first + p);
+            out.addIndex(maxSide ? first + p : first + p + 1);
+        }
+    }
+
+    //Appends the square unless it repeats the last one
+    private static int addUnique(int[] squares, int count, int square) {
+        if (count > 0 && squares[count - 1] == square) return count;
+        squares[count] = square;
+        return count + 1;
+    }
+}
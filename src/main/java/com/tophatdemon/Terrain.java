@@ -1,83 +1,483 @@
 package com.tophatdemon;
 
 import java.util.Random;
+import java.util.Arrays;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.EnumMap;
-import org.joml.SimplexNoise;
 import org.joml.Vector3f;
 import org.joml.Vector3i;
 
 import com.tophatdemon.MarchingCubes.Edge;
 
+/**
+ * A grid of density weights polygonised into a MeshData, with marching cubes unless another SurfaceExtractor is set.
+ * Nothing here touches OpenGL; a TerrainRenderer uploads and draws the output.
+**/
 public class Terrain {
-    protected Mesh mesh = new Mesh();
     protected int gridCols;
     protected int gridRows;
     protected int gridLayers;
     protected float gridSpacing;
-    protected float gridWeights[][][];
+    protected DensityField density;
+    //How the grid is kept while idle, or null to always keep the float grid, see Compact()
+    protected DensityStorage densityStorage;
+    protected PackedDensity packedDensity;
+    //Added to every vertex position; defaults to centering the grid on the origin
+    protected Vector3f meshOffset;
     protected boolean meshRegen = true;
     protected float isoLevel = 0.5f;
+    protected boolean sharedVertices = false;
+    //Vertex count the last mesh would have had without sharing, for comparison, or -1 if its extractor doesn't count it
+    protected int unsharedVertexCount = -1;
+    //Faces of the grid to close off where they are solid, as bits in the order of the CAP_* constants
+    protected int capFaces;
+    protected NormalMode normalMode = NormalMode.FACE;
+    protected SurfaceExtractor surfaceExtractor = SurfaceExtractor.MARCHING_CUBES;
+    //Samples one step outside each face of the grid, so gradient normals are central differences up to the border,
+    //in the order of the CAP_* constants. Each face is indexed by its other two axes, the lower one varying fastest.
+    //Null until gradient normals or an edit need it, and for good if there's no halo source.
+    protected float[][] halo;
+    //Where the halo comes from: whatever filled the grid, for the corners next to it
+    protected SampleFill haloSource;
+    protected int haloOriginX, haloOriginY, haloOriginZ, haloStride;
+
+    /**
+     * Fills dest with x varying fastest with the samples at global grid corners (originX + x * stride, ...)
+    **/
+    public interface SampleFill {
+        void fill(float[] dest, int sizeX, int sizeY, int sizeZ, int originX, int originY, int originZ, int stride);
+    }
+
+    public static final int CAP_NEG_X = 1, CAP_POS_X = 2, CAP_NEG_Y = 4, CAP_POS_Y = 8, CAP_NEG_Z = 16, CAP_POS_Z = 32;
 
     public Terrain(int cols, int rows, int layers, float spacing) {
         gridCols = cols;
         gridRows = rows;
         gridLayers = layers;
         gridSpacing = spacing;
-        gridWeights = new float[cols+1][layers+1][rows+1];
+        density = new DensityField(cols + 1, layers + 1, rows + 1);
+        meshOffset = new Vector3f(
+            -((cols + 1) * spacing) / 2.0f,
+            -((layers + 1) * spacing) / 2.0f,
+            -((rows + 1) * spacing) / 2.0f
+        );
     }
 
-    public Mesh GetMesh() {
+    /**
+     * Returns the polygonised grid, regenerating it first if the grid or settings changed since the last call.
+     * The returned data is reused by the next regeneration.
+    **/
+    public MeshData GetMeshData() {
         if (meshRegen) {
+            if (meshData == null) meshData = new MeshData();
             generateMesh();
             meshRegen = false;
         }
-        return mesh;
+        return meshData;
+    }
+
+    /**
+     * Returns the float grid, unpacking it first if the terrain was compacted
+    **/
+    public DensityField GetDensity() {
+        if (density == null) {
+            density = packedDensity.unpack();
+            packedDensity = null;
+        }
+        return density;
+    }
+
+    //For fills that replace every sample, so there's no point unpacking the old ones. The halo no longer matches.
+    private DensityField densityForOverwrite() {
+        halo = null;
+        haloSource = null;
+        if (density == null) {
+            density = new DensityField(gridCols + 1, gridLayers + 1, gridRows + 1);
+            packedDensity = null;
+        }
+        return density;
+    }
+
+    public void SetDensityStorage(DensityStorage storage) {
+        densityStorage = storage;
+    }
+
+    /**
+     * Packs the grid using the density storage mode and releases the float grid until GetDensity() needs it again.
+     * Does nothing if no storage mode is set.
+    **/
+    public void Compact() {
+        if (densityStorage == null || density == null) return;
+        packedDensity = PackedDensity.pack(density, densityStorage, isoLevel);
+        density = null;
+    }
+
+    /**
+     * Approximate heap footprint of the density samples as they are currently held
+    **/
+    public int GetDensityByteSize() {
+        if (density != null) return density.getValues().length * Float.BYTES;
+        return packedDensity.getByteSize();
+    }
+
+    /**
+     * Returns the grid packed with the density storage mode, or as floats if none is set.
+     * Reuses the compacted copy if there is one, so it is cheap right after Compact().
+    **/
+    public PackedDensity GetPackedDensity() {
+        if (packedDensity != null) return packedDensity;
+        return PackedDensity.pack(density, (densityStorage != null) ? densityStorage : DensityStorage.FLOAT, isoLevel);
+    }
+
+    /**
+     * Replaces the grid with packed samples, such as ones read back from a RegionStore.
+     * They are unpacked when the grid is next needed.
+    **/
+    public void SetPackedDensity(PackedDensity packed) {
+        if (packed.sizeX != gridCols + 1 || packed.sizeY != gridLayers + 1 || packed.sizeZ != gridRows + 1) {
+            throw new IllegalArgumentException("Packed density doesn't match the size of the grid");
+        }
+        packedDensity = packed;
+        density = null;
+        halo = null;
+        haloSource = null;
+        meshRegen = true;
     }
 
-    // private int getFlatVertexIndex(int x, int y, int z) {
-    //     return z + y * (gridRows + 1) + x * (gridRows + 1) * (gridLayers + 1);
-    // }
+    /**
+     * Packs a copy of the grid with the given mode, without changing how this terrain holds it, for memory reports
+    **/
+    public PackedDensity PackCopy(DensityStorage storage) {
+        DensityField field = (density != null) ? density : packedDensity.unpack();
+        return PackedDensity.pack(field, storage, isoLevel);
+    }
 
     public void SetRandomWeights() {
-        Random random = new Random(System.nanoTime());
-        for (int z = 0; z < gridRows + 1; ++z) {
-            for (int y = 0; y < gridLayers + 1; ++y) {
-                for (int x = 0; x < gridCols + 1; ++x) {
-                    gridWeights[x][y][z] = random.nextFloat();
-                }
-            }
+        SetRandomWeights(System.nanoTime());
+    }
+
+    /**
+     * Fills the grid with uniform random weights; the same seed always gives the same weights
+    **/
+    public void SetRandomWeights(long seed) {
+        Random random = new Random(seed);
+        float[] values = densityForOverwrite().getValues();
+        for (int i = 0; i < values.length; ++i) {
+            values[i] = random.nextFloat();
         }
+        density.updateBlockBounds();
         meshRegen = true;
     }
 
     public void SetPerlinNoiseWeights(float scale, boolean border) {
-        Random random = new Random(System.nanoTime());
+        SetPerlinNoiseWeights(scale, border, System.nanoTime());
+    }
+
+    /**
+     * Samples a part of the noise field picked by the seed; the same seed always gives the same weights
+     * @param border Whether to make the outermost corners solid, closing off the mesh
+    **/
+    public void SetPerlinNoiseWeights(float scale, boolean border, long seed) {
+        Random random = new Random(seed);
         float offset = random.nextFloat() * 100.0f;
-        for (int z = 0; z < gridRows + 1; ++z) {
-            for (int y = 0; y < gridLayers + 1; ++y) {
-                for (int x = 0; x < gridCols + 1; ++x) {
-                    if (border && (z == 0 || x == 0 || y == 0 || z == gridRows || y == gridLayers || x == gridCols)) {
-                        gridWeights[x][y][z] = 1.0f;
-                    } else {
-                        gridWeights[x][y][z] = (SimplexNoise.noise((x + offset) * scale, (y + offset) * scale, (z + offset) * scale) + 1.0f) / 2.0f;
+        fillPerlinNoise(scale, 0, 0, 0, offset, 1, border);
+    }
+
+    /**
+     * Samples the noise field at grid corner (originX + x, originY + y, originZ + z).
+     * Neighboring grids whose origins are a grid size apart get identical weights along their shared border.
+     * @param scale The noise frequency per grid cell
+     * @param offset Added to every coordinate before scaling, to pick a different part of the noise field
+    **/
+    public void SetPerlinNoiseWeights(float scale, int originX, int originY, int originZ, float offset) {
+        fillPerlinNoise(scale, originX, originY, originZ, offset, 1, false);
+    }
+
+    /**
+     * Samples the noise field at every stride-th global grid corner, (originX + x * stride, ...), for grids
+     * that cover the same area as a full resolution one with fewer, larger cells.
+     * Grids with the same stride whose origins are a grid size times the stride apart still share their borders.
+    **/
+    public void SetPerlinNoiseWeights(float scale, int originX, int originY, int originZ, float offset, int stride) {
+        fillPerlinNoise(scale, originX, originY, originZ, offset, stride, false);
+    }
+
+    private void fillPerlinNoise(float scale, int originX, int originY, int originZ, float offset, int stride, boolean border) {
+        float[] values = densityForOverwrite().getValues();
+        SimplexNoiseBatch.fill(values, gridCols + 1, gridLayers + 1, gridRows + 1, originX, originY, originZ, stride, offset, scale);
+        //The solid border wouldn't match the noise around it
+        if (!border) SetPerlinNoiseHalo(scale, originX, originY, originZ, offset, stride);
+        if (border) {
+            int i = 0;
+            for (int z = 0; z < gridRows + 1; ++z) {
+                for (int y = 0; y < gridLayers + 1; ++y) {
+                    for (int x = 0; x < gridCols + 1; ++x, ++i) {
+                        if (z == 0 || x == 0 || y == 0 || z == gridRows || y == gridLayers || x == gridCols) values[i] = 1.0f;
                     }
                 }
             }
         }
+        density.updateBlockBounds();
+        meshRegen = true;
+    }
+
+    /**
+     * Fills the grid from a density function, with corner (x, y, z) at global grid coordinates
+     * (originX + x * stride, ...), the same corners SetPerlinNoiseWeights() samples.
+    **/
+    public void SetDensityFunction(DensityFunction function, int originX, int originY, int originZ, int stride) {
+        float[] values = densityForOverwrite().getValues();
+        SampleGrid grid = SampleGrid.forCurrentThread().set(originX, originY, originZ, stride, gridCols + 1, gridLayers + 1, gridRows + 1);
+        function.fill(values, grid);
+        SetDensityFunctionHalo(function, originX, originY, originZ, stride);
+        density.updateBlockBounds();
+        meshRegen = true;
+    }
+
+    /**
+     * Sets where the halo around the grid comes from without touching the grid: the noise field, sampled
+     * like SetPerlinNoiseWeights() with the same arguments. For grids filled some other way, such as from a store.
+    **/
+    public void SetPerlinNoiseHalo(float scale, int originX, int originY, int originZ, float offset, int stride) {
+        setHaloSource((dest, sizeX, sizeY, sizeZ, x, y, z, step) ->
+            SimplexNoiseBatch.fill(dest, sizeX, sizeY, sizeZ, x, y, z, step, offset, scale), originX, originY, originZ, stride);
+    }
+
+    /**
+     * Sets where the halo around the grid comes from without touching the grid: a density function, sampled
+     * like SetDensityFunction() with the same arguments
+    **/
+    public void SetDensityFunctionHalo(DensityFunction function, int originX, int originY, int originZ, int stride) {
+        setHaloSource((dest, sizeX, sizeY, sizeZ, x, y, z, step) ->
+            function.fill(dest, SampleGrid.forCurrentThread().set(x, y, z, step, sizeX, sizeY, sizeZ)),
+            originX, originY, originZ, stride);
+    }
+
+    private void setHaloSource(SampleFill source, int originX, int originY, int originZ, int stride) {
+        haloSource = source;
+        haloOriginX = originX;
+        haloOriginY = originY;
+        haloOriginZ = originZ;
+        haloStride = stride;
+        halo = null;
+        if (normalMode == NormalMode.GRADIENT) meshRegen = true;
+    }
+
+    //Fills the halo from its source if it hasn't been yet, and returns it, or null if there's no source
+    private float[][] ensureHalo() {
+        if (halo != null || haloSource == null) return halo;
+        int[] last = { gridCols, gridLayers, gridRows };
+        int[] origin = { haloOriginX, haloOriginY, haloOriginZ };
+        float[][] faces = new float[6][];
+        for (int face = 0; face < 6; ++face) {
+            int axis = face >> 1;
+            int[] size = { gridCols + 1, gridLayers + 1, gridRows + 1 };
+            int[] faceOrigin = origin.clone();
+            size[axis] = 1;
+            faceOrigin[axis] += ((face & 1) == 0) ? -haloStride : (last[axis] + 1) * haloStride;
+            faces[face] = new float[size[0] * size[1] * size[2]];
+            haloSource.fill(faces[face], size[0], size[1], size[2], faceOrigin[0], faceOrigin[1], faceOrigin[2], haloStride);
+        }
+        halo = faces;
+        return halo;
+    }
+
+    public void SetPerlinNoiseWeights(float scale) {
+        SetPerlinNoiseWeights(scale, false);
+    }
+
+    /**
+     * Copies a whole grid of samples, with x varying fastest, such as ones evaluated on the GPU
+    **/
+    public void SetDensityValues(float[] values) {
+        float[] dest = densityForOverwrite().getValues();
+        if (values.length != dest.length) {
+            throw new IllegalArgumentException("Density values don't match the size of the grid");
+        }
+        System.arraycopy(values, 0, dest, 0, dest.length);
+        density.updateBlockBounds();
         meshRegen = true;
     }
 
     public void SetDebugWeights() {
+        float[] values = densityForOverwrite().getValues();
+        int i = 0;
         for (int z = 0; z < gridRows + 1; ++z) {
             for (int y = 0; y < gridLayers + 1; ++y) {
-                for (int x = 0; x < gridCols + 1; ++x) {
-                    gridWeights[x][y][z] = (x % 2 == 0 && y % 2 == 0 && z % 2 == 0) ? 1.0f : 0.0f;
+                for (int x = 0; x < gridCols + 1; ++x, ++i) {
+                    values[i] = (x % 2 == 0 && y % 2 == 0 && z % 2 == 0) ? 1.0f : 0.0f;
+                }
+            }
+        }
+        density.updateBlockBounds();
+        meshRegen = true;
+    }
+
+    /**
+     * Adds to the samples within a sphere, fading linearly to nothing at the edge. Weights are clamped to [0, 1].
+     * Coordinates and radius are in grid cells.
+     * @return Whether any sample changed
+    **/
+    public boolean AddDensitySphere(float centerX, float centerY, float centerZ, float radius, float amount) {
+        return editSphere(centerX, centerY, centerZ, radius, amount, false);
+    }
+
+    /**
+     * Sets the samples within a sphere to a value. Coordinates and radius are in grid cells.
+     * @return Whether any sample changed
+    **/
+    public boolean SetDensitySphere(float centerX, float centerY, float centerZ, float radius, float value) {
+        return editSphere(centerX, centerY, centerZ, radius, value, true);
+    }
+
+    /**
+     * Sets the samples between two grid corners (inclusive) to a value. The box may extend past the grid.
+     * @return Whether any sample changed
+    **/
+    public boolean SetDensityBox(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, float value) {
+        boolean changed = editHalo(minX, minY, minZ, maxX, maxY, maxZ, (x, y, z, old) -> value);
+        minX = Math.max(0, minX); maxX = Math.min(gridCols, maxX);
+        minY = Math.max(0, minY); maxY = Math.min(gridLayers, maxY);
+        minZ = Math.max(0, minZ); maxZ = Math.min(gridRows, maxZ);
+        DensityField field = GetDensity();
+        for (int z = minZ; z <= maxZ; ++z) {
+            for (int y = minY; y <= maxY; ++y) {
+                for (int x = minX; x <= maxX; ++x) {
+                    if (field.get(x, y, z) != value) {
+                        field.set(x, y, z, value);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        if (changed) meshRegen = true;
+        return changed;
+    }
+
+    private boolean editSphere(float centerX, float centerY, float centerZ, float radius, float amount, boolean replace) {
+        float radiusSquared = radius * radius;
+        SampleEdit edit = (x, y, z, old) -> {
+            float dx = x - centerX, dy = y - centerY, dz = z - centerZ;
+            float distSquared = dx * dx + dy * dy + dz * dz;
+            if (distSquared > radiusSquared) return old;
+            return replace ? amount
+                : Math.max(0.0f, Math.min(1.0f, old + amount * (1.0f - (float) Math.sqrt(distSquared) / radius)));
+        };
+        int minX = (int) Math.ceil(centerX - radius), maxX = (int) Math.floor(centerX + radius);
+        int minY = (int) Math.ceil(centerY - radius), maxY = (int) Math.floor(centerY + radius);
+        int minZ = (int) Math.ceil(centerZ - radius), maxZ = (int) Math.floor(centerZ + radius);
+        boolean changed = editHalo(minX, minY, minZ, maxX, maxY, maxZ, edit);
+
+        minX = Math.max(0, minX); maxX = Math.min(gridCols, maxX);
+        minY = Math.max(0, minY); maxY = Math.min(gridLayers, maxY);
+        minZ = Math.max(0, minZ); maxZ = Math.min(gridRows, maxZ);
+        if (minX > maxX || minY > maxY || minZ > maxZ) {
+            if (changed) meshRegen = true;
+            return changed;
+        }
+
+        DensityField field = GetDensity();
+        for (int z = minZ; z <= maxZ; ++z) {
+            for (int y = minY; y <= maxY; ++y) {
+                for (int x = minX; x <= maxX; ++x) {
+                    float old = field.get(x, y, z);
+                    float value = edit.apply(x, y, z, old);
+                    if (value != old) {
+                        field.set(x, y, z, value);
+                        changed = true;
+                    }
+                }
+            }
+        }
+        if (changed) meshRegen = true;
+        return changed;
+    }
+
+    //The new value of the sample at grid corner (x, y, z)
+    private interface SampleEdit {
+        float apply(int x, int y, int z, float old);
+    }
+
+    //Applies an edit to the halo samples within a range of grid corners, which may extend past the grid,
+    //filling the halo first so the neighbors' edited samples are mirrored in it
+    private boolean editHalo(int minX, int minY, int minZ, int maxX, int maxY, int maxZ, SampleEdit edit) {
+        int[] last = { gridCols, gridLayers, gridRows };
+        int[] min = { minX, minY, minZ }, max = { maxX, maxY, maxZ };
+        boolean touches = false;
+        for (int axis = 0; axis < 3; ++axis) {
+            if (max[axis] < -1 || min[axis] > last[axis] + 1) return false;
+            if (min[axis] <= -1 || max[axis] >= last[axis] + 1) touches = true;
+        }
+        if (!touches) return false;
+        float[][] faces = ensureHalo();
+        if (faces == null) return false;
+
+        boolean changed = false;
+        int[] coord = new int[3];
+        for (int face = 0; face < 6; ++face) {
+            int axis = face >> 1, u = (axis == 0) ? 1 : 0, v = (axis == 2) ? 1 : 2;
+            coord[axis] = ((face & 1) == 0) ? -1 : last[axis] + 1;
+            if (coord[axis] < min[axis] || coord[axis] > max[axis]) continue;
+            float[] samples = faces[face];
+            int sizeU = last[u] + 1;
+            for (int cv = Math.max(0, min[v]); cv <= Math.min(last[v], max[v]); ++cv) {
+                for (int cu = Math.max(0, min[u]); cu <= Math.min(last[u], max[u]); ++cu) {
+                    coord[u] = cu;
+                    coord[v] = cv;
+                    int i = cu + cv * sizeU;
+                    float value = edit.apply(coord[0], coord[1], coord[2], samples[i]);
+                    if (value != samples[i]) {
+                        samples[i] = value;
+                        changed = true;
+                    }
                 }
             }
         }
+        return changed;
+    }
+
+    public void SetMeshOffset(float x, float y, float z) {
+        meshOffset.set(x, y, z);
+        meshRegen = true;
+    }
+
+    /**
+     * Closes off the solid parts of the given faces of the grid with flat caps, using the CAP_* bits.
+     * Where a neighboring grid samples the same border at a different resolution the two surfaces don't
+     * quite meet, and the caps cover the cracks between them.
+    **/
+    public void SetBorderCaps(int faces) {
+        if (faces != capFaces) {
+            capFaces = faces;
+            meshRegen = true;
+        }
+    }
+
+    /**
+     * When enabled, vertices on edges shared between neighboring cells are emitted once and reused,
+     * and normals are averaged over every triangle touching the vertex.
+    **/
+    public void SetSharedVertices(boolean shared) {
+        if (shared != sharedVertices) {
+            sharedVertices = shared;
+            meshRegen = true;
+        }
+    }
+
+    public void SetNormalMode(NormalMode mode) {
+        if (mode != normalMode) {
+            normalMode = mode;
+            meshRegen = true;
+        }
+    }
+
+    public void SetSurfaceExtractor(SurfaceExtractor extractor) {
+        if (extractor != surfaceExtractor) {
+            surfaceExtractor = extractor;
+            meshRegen = true;
+        }
     }
 
     public void SetIsoLevel(float isoLevel) {
@@ -99,42 +499,417 @@ public class Terrain {
         }
     }
 
+    //Output of GetMeshData(), created on first use since chunks polygonise into pooled buffers instead
+    private MeshData meshData;
+    private static final int EDGE_COUNT = MarchingCubes.Edge.values().length;
+    //Per-cell scratch space for the polygonisation kernel, indexed by edge ordinal
+    private final int[] cellEdgeVertices = new int[EDGE_COUNT];
+    private final int[] cellEdgeMultiplicity = new int[EDGE_COUNT];
+    //Vertex indices of the edges starting on the grid corners of two adjacent z slices, indexed by (x, y, axis)
+    private int[] edgeCacheLower;
+    private int[] edgeCacheUpper;
+    //Array offsets from a cell's first corner to the two corners of each edge, for the current grid size
+    private final int[] edgeStartOffsets = new int[EDGE_COUNT];
+    private final int[] edgeEndOffsets = new int[EDGE_COUNT];
+
     private void generateMesh() {
         long timerStart = System.currentTimeMillis();
 
-        Vector3f offset = new Vector3f(
-            -((gridCols + 1) * gridSpacing) / 2.0f,
-            -((gridLayers + 1) * gridSpacing) / 2.0f,
-            -((gridRows + 1) * gridSpacing) / 2.0f
-        );
+        polygonise(meshData);
 
-        List<Vertex> verts = new ArrayList<>();
-        List<Integer> indices = new ArrayList<>();
+        long methodTime = System.currentTimeMillis() - timerStart;
+        if (sharedVertices && unsharedVertexCount >= 0) {
+            System.out.printf("Chunk generation took %dms (%d vertices, %d indices; %d vertices without sharing).%n",
+                methodTime, meshData.getVertexCount(), meshData.getIndexCount(), unsharedVertexCount);
+        } else {
+            System.out.printf("Chunk generation took %dms (%d vertices, %d indices).%n",
+                methodTime, meshData.getVertexCount(), meshData.getIndexCount());
+        }
+    }
 
-        //TODO: Make smoother normals
+    /**
+     * Writes the surface of the grid into the given buffers with the terrain's surface extractor
+    **/
+    void polygonise(MeshData out) {
+        if (normalMode == NormalMode.GRADIENT) ensureHalo();
+        unsharedVertexCount = -1;
+        surfaceExtractor.extract(this, out);
+    }
+
+    /**
+     * Runs marching cubes over the grid and writes the resulting triangles into the given buffers.
+     * Without shared vertices this produces exactly the same vertices, normals and indices as
+     * polygoniseReference(), but without allocating any objects per cell or per vertex.
+    **/
+    void marchingCubes(MeshData out) {
+        out.clear();
+
+        final float offsetX = meshOffset.x;
+        final float offsetY = meshOffset.y;
+        final float offsetZ = meshOffset.z;
+        final DensityField density = GetDensity();
+        final float[] weights = density.getValues();
+        final int strideY = density.getStrideY();
+        final int strideZ = density.getStrideZ();
+        final int[] edgeVertices = cellEdgeVertices;
+        final int[] edgeMultiplicity = cellEdgeMultiplicity;
+        final boolean shared = sharedVertices;
+        final boolean faceNormals = normalMode == NormalMode.FACE;
+        final int sliceWidth = (gridCols + 1) * 3;
+
+        if (shared) {
+            int sliceSize = sliceWidth * (gridLayers + 1);
+            if (edgeCacheLower == null || edgeCacheLower.length != sliceSize) {
+                edgeCacheLower = new int[sliceSize];
+                edgeCacheUpper = new int[sliceSize];
+            }
+            Arrays.fill(edgeCacheUpper, -1);
+        }
+        final byte[] shapeEdges = MarchingCubes.SHAPE_EDGES;
+        final int[] shapeStarts = MarchingCubes.SHAPE_STARTS;
+        final byte[] edgeOffsetX = MarchingCubes.EDGE_OFFSET_X;
+        final byte[] edgeOffsetY = MarchingCubes.EDGE_OFFSET_Y;
+        final byte[] edgeOffsetZ = MarchingCubes.EDGE_OFFSET_Z;
+        final byte[] edgeAxis = MarchingCubes.EDGE_AXIS;
+        for (int ei = 0; ei < EDGE_COUNT; ++ei) {
+            int c0 = MarchingCubes.EDGE_CORNER_0[ei], c1 = MarchingCubes.EDGE_CORNER_1[ei];
+            edgeStartOffsets[ei] = density.index(MarchingCubes.CORNER_X[c0], MarchingCubes.CORNER_Y[c0], MarchingCubes.CORNER_Z[c0]);
+            edgeEndOffsets[ei] = density.index(MarchingCubes.CORNER_X[c1], MarchingCubes.CORNER_Y[c1], MarchingCubes.CORNER_Z[c1]);
+        }
+        final int blocksX = density.getBlocksX();
+        int unsharedCount = 0;
+
+        for (int z = 0; z < gridRows; ++z) {
+            if (shared) {
+                //Roll the slices forward so the upper slice of the last layer becomes the lower one
+                int[] temp = edgeCacheLower;
+                edgeCacheLower = edgeCacheUpper;
+                edgeCacheUpper = temp;
+                Arrays.fill(edgeCacheUpper, -1);
+            }
+            final int blockZ = z >> DensityField.BLOCK_SHIFT;
+            for (int y = 0; y < gridLayers; ++y) {
+                final int blockY = y >> DensityField.BLOCK_SHIFT;
+                int rowStart = density.index(0, y, z);
+                //Blocks whose samples are all on one side of the iso level can't produce any triangles
+                for (int blockX = 0; blockX < blocksX; ++blockX) {
+                    if (!density.blockMayCross(blockX, blockY, blockZ, isoLevel)) continue;
+                    int xStart = blockX << DensityField.BLOCK_SHIFT, xEnd = Math.min(gridCols, xStart + DensityField.BLOCK_SIZE);
+                    //Each cell's mask reuses the samples on its left face from the previous cell's right face
+                    int leftBits = cornerColumnBits(weights, rowStart + xStart, strideY, strideZ);
+                    for (int x = xStart; x < xEnd; ++x) {
+                        int cell = rowStart + x;
+                        int rightBits = cornerColumnBits(weights, cell + 1, strideY, strideZ);
+                        int mask = ((leftBits & 1)) | ((leftBits & 2) << 2) | ((leftBits & 4) << 2) | ((leftBits & 8) << 4)
+                                 | ((rightBits & 1) << 1) | ((rightBits & 2) << 1) | ((rightBits & 4) << 3) | ((rightBits & 8) << 3);
+                        leftBits = rightBits;
 
-        Random random = new Random(System.currentTimeMillis());
+                        final int shapeStart = shapeStarts[mask], shapeEnd = shapeStarts[mask + 1];
+                        if (shapeStart == shapeEnd) continue;
+                        unsharedCount += MarchingCubes.UNIQUE_EDGE_COUNTS[mask];
+
+                        Arrays.fill(edgeVertices, -1);
+                        for (int s = shapeStart; s < shapeEnd; ++s) {
+                            int ei = shapeEdges[s];
+                            int vertex = edgeVertices[ei];
+                            if (vertex < 0) {
+                                int axis = edgeAxis[ei];
+                                int[] cache = null;
+                                int cacheKey = 0;
+                                if (shared) {
+                                    cache = (edgeOffsetZ[ei] == 0) ? edgeCacheLower : edgeCacheUpper;
+                                    cacheKey = (y + edgeOffsetY[ei]) * sliceWidth + (x + edgeOffsetX[ei]) * 3 + axis;
+                                    vertex = cache[cacheKey];
+                                }
+                                if (vertex < 0) {
+                                    float isoVal0 = weights[cell + edgeStartOffsets[ei]];
+                                    float isoVal1 = weights[cell + edgeEndOffsets[ei]];
+                                    float factor = (isoLevel - isoVal0) / (isoVal1 - isoVal0);
+                                    //offset + direction * factor as in Edge.GetInterpolatedPosition; the direction's zero
+                                    //components add nothing, so the results still match it bit for bit
+                                    float fx = edgeOffsetX[ei], fy = edgeOffsetY[ei], fz = edgeOffsetZ[ei];
+                                    if (axis == 0) fx += factor; else if (axis == 1) fy += factor; else fz += factor;
+                                    float px = (x + fx) * gridSpacing + offsetX;
+                                    float py = (y + fy) * gridSpacing + offsetY;
+                                    float pz = (z + fz) * gridSpacing + offsetZ;
+                                    vertex = out.addVertex(px, py, pz, 0.5f, 0.25f, 0.1f);
+                                    if (!faceNormals) addGradientNormal(out, vertex, weights, cell, x, y, z, ei, factor, strideY, strideZ);
+                                    if (shared) cache[cacheKey] = vertex;
+                                }
+                                edgeVertices[ei] = vertex;
+                                edgeMultiplicity[ei] = 1;
+                            } else {
+                                edgeMultiplicity[ei]++;
+                            }
+                            out.addIndex(vertex);
+
+                            //Calculate per-triangle normals
+                            boolean lastCorner = faceNormals && (s - shapeStart) % 3 == 2;
+                            if (lastCorner && shared) {
+                                //Sum the unscaled face normals so larger triangles weigh more, then normalize at the end
+                                float[] p = out.getPositions();
+                                int i0 = edgeVertices[shapeEdges[s-2]], i1 = edgeVertices[shapeEdges[s-1]], i2 = vertex;
+                                int v0 = i0 * 3, v1 = i1 * 3, v2 = i2 * 3;
+                                float ax = p[v1] - p[v0], ay = p[v1+1] - p[v0+1], az = p[v1+2] - p[v0+2];
+                                float bx = p[v2] - p[v0], by = p[v2+1] - p[v0+1], bz = p[v2+2] - p[v0+2];
+                                float nx = ay * bz - az * by;
+                                float ny = az * bx - ax * bz;
+                                float nz = ax * by - ay * bx;
+                                out.addNormal(i0, nx, ny, nz);
+                                out.addNormal(i1, nx, ny, nz);
+                                out.addNormal(i2, nx, ny, nz);
+                            } else if (lastCorner) {
+                                int e0 = shapeEdges[s-2], e1 = shapeEdges[s-1], e2 = ei;
+                                float[] p = out.getPositions();
+                                int v0 = edgeVertices[e0] * 3, v1 = edgeVertices[e1] * 3, v2 = edgeVertices[e2] * 3;
+                                float ax = p[v1] - p[v0], ay = p[v1+1] - p[v0+1], az = p[v1+2] - p[v0+2];
+                                float bx = p[v2] - p[v0], by = p[v2+1] - p[v0+1], bz = p[v2+2] - p[v0+2];
+                                float nx = ay * bz - az * by;
+                                float ny = az * bx - ax * bz;
+                                float nz = ax * by - ay * bx;
+                                addScaledNormal(out, edgeVertices[e0], nx, ny, nz, edgeMultiplicity[e0]);
+                                addScaledNormal(out, edgeVertices[e1], nx, ny, nz, edgeMultiplicity[e1]);
+                                addScaledNormal(out, edgeVertices[e2], nx, ny, nz, edgeMultiplicity[e2]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        if (capFaces != 0) addBorderCaps(out, density);
+        if (shared && faceNormals) out.normalizeNormals();
+        unsharedVertexCount = unsharedCount;
+    }
+
+    /**
+     * Sets the vertex's normal to the density gradient interpolated along its edge, normalized.
+     * The weights grow into the solid, so like the face normals it points into the solid.
+    **/
+    private void addGradientNormal(MeshData out, int vertex, float[] weights, int cell, int x, int y, int z,
+                                   int edge, float factor, int strideY, int strideZ) {
+        int c0 = MarchingCubes.EDGE_CORNER_0[edge], c1 = MarchingCubes.EDGE_CORNER_1[edge];
+        int x0 = x + MarchingCubes.CORNER_X[c0], y0 = y + MarchingCubes.CORNER_Y[c0], z0 = z + MarchingCubes.CORNER_Z[c0];
+        int x1 = x + MarchingCubes.CORNER_X[c1], y1 = y + MarchingCubes.CORNER_Y[c1], z1 = z + MarchingCubes.CORNER_Z[c1];
+        int i0 = cell + edgeStartOffsets[edge], i1 = cell + edgeEndOffsets[edge];
+        float gx0 = gradient(weights, i0, x0, y0, z0, 0), gx1 = gradient(weights, i1, x1, y1, z1, 0);
+        float gy0 = gradient(weights, i0, x0, y0, z0, 1), gy1 = gradient(weights, i1, x1, y1, z1, 1);
+        float gz0 = gradient(weights, i0, x0, y0, z0, 2), gz1 = gradient(weights, i1, x1, y1, z1, 2);
+        float nx = gx0 + (gx1 - gx0) * factor;
+        float ny = gy0 + (gy1 - gy0) * factor;
+        float nz = gz0 + (gz1 - gz0) * factor;
+        float lengthSquared = nx * nx + ny * ny + nz * nz;
+        if (lengthSquared > 0.0f) {
+            float invLength = (float) (1.0 / Math.sqrt(lengthSquared));
+            out.addNormal(vertex, nx * invLength, ny * invLength, nz * invLength);
+        }
+    }
+
+    /**
+     * Rate of change of the weights along an axis at corner (x, y, z), whose index is given.
+     * Reaches into the halo at the ends of the grid if there is one, so neighboring grids agree on the gradient
+     * along their shared border; without one it's one-sided there.
+    **/
+    float gradient(float[] weights, int index, int x, int y, int z, int axis) {
+        int coord, last, stride;
+        if (axis == 0) {
+            coord = x; last = gridCols; stride = 1;
+        } else if (axis == 1) {
+            coord = y; last = gridLayers; stride = gridCols + 1;
+        } else {
+            coord = z; last = gridRows; stride = (gridCols + 1) * (gridLayers + 1);
+        }
+        if (coord == 0) {
+            if (halo == null) return weights[index + stride] - weights[index];
+            return (weights[index + stride] - halo[axis * 2][haloIndex(x, y, z, axis)]) * 0.5f;
+        }
+        if (coord == last) {
+            if (halo == null) return weights[index] - weights[index - stride];
+            return (halo[axis * 2 + 1][haloIndex(x, y, z, axis)] - weights[index - stride]) * 0.5f;
+        }
+        return (weights[index + stride] - weights[index - stride]) * 0.5f;
+    }
+
+    //Index within a halo face across the axis of the sample next to corner (x, y, z)
+    private int haloIndex(int x, int y, int z, int axis) {
+        if (axis == 0) return y + z * (gridLayers + 1);
+        if (axis == 1) return x + z * (gridCols + 1);
+        return x + y * (gridCols + 1);
+    }
+
+    //For caps across each axis, the two axes along the face, ordered so that u x v points along the axis
+    private static final int[][] FACE_AXES = { { 1, 2 }, { 2, 0 }, { 0, 1 } };
+    //Scratch space for one cap polygon, as (u, v) pairs; a square cut by the iso line has at most 6 points
+    private final float[] capPolygon = new float[16];
+    private final int[] capCoord = new int[3];
+    private final float[] capPosition = new float[3];
+    //Corners of a face cell counterclockwise in (u, v)
+    private static final int[] CAP_CORNER_U = { 0, 1, 1, 0 };
+    private static final int[] CAP_CORNER_V = { 0, 0, 1, 1 };
+
+    /**
+     * Adds the solid part of each capped face, found with marching squares on the face's samples.
+     * The cap points are interpolated the same way as the surface's edge vertices, so they meet the surface exactly.
+     * Like the surface's, their winding and normals face into the solid.
+    **/
+    private void addBorderCaps(MeshData out, DensityField density) {
+        final int[] cells = { gridCols, gridLayers, gridRows };
+        final int[] coord = capCoord;
+        for (int face = 0; face < 6; ++face) {
+            if ((capFaces & (1 << face)) == 0) continue;
+            final int axis = face >> 1;
+            final boolean maxSide = (face & 1) != 0;
+            final int u = FACE_AXES[axis][0], v = FACE_AXES[axis][1];
+            coord[axis] = maxSide ? cells[axis] : 0;
+
+            for (int j = 0; j < cells[v]; ++j) {
+                //Runs of fully solid cells along a row are merged into one quad
+                int runStart = -1;
+                for (int i = 0; i <= cells[u]; ++i) {
+                    int solidCorners = 0;
+                    if (i < cells[u]) {
+                        if (capWeight(density, coord, u, v, i, j) >= isoLevel) solidCorners |= 1;
+                        if (capWeight(density, coord, u, v, i + 1, j) >= isoLevel) solidCorners |= 2;
+                        if (capWeight(density, coord, u, v, i + 1, j + 1) >= isoLevel) solidCorners |= 4;
+                        if (capWeight(density, coord, u, v, i, j + 1) >= isoLevel) solidCorners |= 8;
+                    }
+                    if (solidCorners == 15) {
+                        if (runStart < 0) runStart = i;
+                        continue;
+                    }
+                    if (runStart >= 0) {
+                        float[] poly = capPolygon;
+                        poly[0] = runStart; poly[1] = j;
+                        poly[2] = i;        poly[3] = j;
+                        poly[4] = i;        poly[5] = j + 1;
+                        poly[6] = runStart; poly[7] = j + 1;
+                        addCapPolygon(out, axis, maxSide, coord[axis], 4);
+                        runStart = -1;
+                    }
+                    if (solidCorners != 0) {
+                        addCapPolygon(out, axis, maxSide, coord[axis], traceCapCell(density, coord, u, v, i, j));
+                    }
+                }
+            }
+        }
+    }
+
+    private static float capWeight(DensityField density, int[] coord, int u, int v, int i, int j) {
+        coord[u] = i;
+        coord[v] = j;
+        return density.get(coord[0], coord[1], coord[2]);
+    }
+
+    /**
+     * Walks the corners of a face cell counterclockwise in (u, v), writing the solid corners and
+     * the iso crossings between them into capPolygon
+     * @return The number of points written
+    **/
+    private int traceCapCell(DensityField density, int[] coord, int u, int v, int i, int j) {
+        float[] poly = capPolygon;
+        int count = 0;
+        for (int c = 0; c < 4; ++c) {
+            int n = (c + 1) & 3;
+            int u0 = i + CAP_CORNER_U[c], v0 = j + CAP_CORNER_V[c];
+            int u1 = i + CAP_CORNER_U[n], v1 = j + CAP_CORNER_V[n];
+            float w0 = capWeight(density, coord, u, v, u0, v0);
+            float w1 = capWeight(density, coord, u, v, u1, v1);
+            if (w0 >= isoLevel) {
+                poly[count * 2] = u0;
+                poly[count * 2 + 1] = v0;
+                ++count;
+            }
+            if ((w0 >= isoLevel) != (w1 >= isoLevel)) {
+                //Interpolate from the lower corner of the edge, as the surface's edges run in the positive direction
+                boolean forward = u1 > u0 || v1 > v0;
+                float lowWeight = forward ? w0 : w1, highWeight = forward ? w1 : w0;
+                float factor = (isoLevel - lowWeight) / (highWeight - lowWeight);
+                int lowU = Math.min(u0, u1), lowV = Math.min(v0, v1);
+                poly[count * 2] = (u0 != u1) ? lowU + factor : lowU;
+                poly[count * 2 + 1] = (v0 != v1) ? lowV + factor : lowV;
+                ++count;
+            }
+        }
+        return count;
+    }
+
+    //Fans the points in capPolygon into triangles on the face at the given position along the axis
+    private void addCapPolygon(MeshData out, int axis, boolean maxSide, int facePosition, int count) {
+        final int u = FACE_AXES[axis][0], v = FACE_AXES[axis][1];
+        //Into the grid: along the axis from the min face, against it from the max face
+        float inward = maxSide ? -1.0f : 1.0f;
+        float[] position = capPosition;
+        int first = out.getVertexCount();
+        for (int p = 0; p < count; ++p) {
+            position[axis] = facePosition;
+            position[u] = capPolygon[p * 2];
+            position[v] = capPolygon[p * 2 + 1];
+            int vertex = out.addVertex(
+                position[0] * gridSpacing + meshOffset.x,
+                position[1] * gridSpacing + meshOffset.y,
+                position[2] * gridSpacing + meshOffset.z,
+                0.5f, 0.25f, 0.1f);
+            out.addNormal(vertex, axis == 0 ? inward : 0.0f, axis == 1 ? inward : 0.0f, axis == 2 ? inward : 0.0f);
+        }
+        //Counterclockwise in (u, v) winds towards +axis, which faces into the grid on the min face
+        for (int p = 1; p + 1 < count; ++p) {
+            out.addIndex(first);
+            out.addIndex(maxSide ? first + p + 1 : first + p);
+            out.addIndex(maxSide ? first + p : first + p + 1);
+        }
+    }
+
+    /**
+     * Returns which of the four samples at (index), (+y), (+z) and (+y+z) are below the iso level, as bits 0 to 3
+    **/
+    private int cornerColumnBits(float[] weights, int index, int strideY, int strideZ) {
+        int bits = 0;
+        if (weights[index] < isoLevel) bits |= 1;
+        if (weights[index + strideZ] < isoLevel) bits |= 2;
+        if (weights[index + strideY] < isoLevel) bits |= 4;
+        if (weights[index + strideY + strideZ] < isoLevel) bits |= 8;
+        return bits;
+    }
+
+    private static void addScaledNormal(MeshData out, int vertex, float nx, float ny, float nz, int multiplicity) {
+        //Multiplies by the reciprocal, as Vector3f.div does
+        float inv = 1.0f / multiplicity;
+        out.addNormal(vertex, nx * inv, ny * inv, nz * inv);
+    }
+
+    /**
+     * The original object-based implementation of marchingCubes(), kept as a reference to check
+     * the output and speed of the primitive kernel against.
+    **/
+    void polygoniseReference(MeshData out) {
+        out.clear();
+
+        Vector3f offset = new Vector3f(meshOffset);
+        DensityField density = GetDensity();
+
+        List<Vertex> verts = new ArrayList<>();
+        List<Integer> indices = new ArrayList<>();
 
         Map<Edge, Integer> edgeIndices = new EnumMap<>(Edge.class);
         for (int z = 0; z < gridRows; ++z) {
             for (int y = 0; y < gridLayers; ++y) {
                 for (int x = 0; x < gridCols; ++x) {
                     int mask = 0;
-                    if (gridWeights[x+0][y+0][z+0] < isoLevel) mask |= 1 << 0;
-                    if (gridWeights[x+1][y+0][z+0] < isoLevel) mask |= 1 << 1;
-                    if (gridWeights[x+1][y+0][z+1] < isoLevel) mask |= 1 << 2;
-                    if (gridWeights[x+0][y+0][z+1] < isoLevel) mask |= 1 << 3;
-                    if (gridWeights[x+0][y+1][z+0] < isoLevel) mask |= 1 << 4;
-                    if (gridWeights[x+1][y+1][z+0] < isoLevel) mask |= 1 << 5;
-                    if (gridWeights[x+1][y+1][z+1] < isoLevel) mask |= 1 << 6;
-                    if (gridWeights[x+0][y+1][z+1] < isoLevel) mask |= 1 << 7;
+                    if (density.get(x+0, y+0, z+0) < isoLevel) mask |= 1 << 0;
+                    if (density.get(x+1, y+0, z+0) < isoLevel) mask |= 1 << 1;
+                    if (density.get(x+1, y+0, z+1) < isoLevel) mask |= 1 << 2;
+                    if (density.get(x+0, y+0, z+1) < isoLevel) mask |= 1 << 3;
+                    if (density.get(x+0, y+1, z+0) < isoLevel) mask |= 1 << 4;
+                    if (density.get(x+1, y+1, z+0) < isoLevel) mask |= 1 << 5;
+                    if (density.get(x+1, y+1, z+1) < isoLevel) mask |= 1 << 6;
+                    if (density.get(x+0, y+1, z+1) < isoLevel) mask |= 1 << 7;
 
                     edgeIndices.clear();
                     for (int i = 0; i < MarchingCubes.SHAPES[mask].length; ++i) {
                         Edge e = MarchingCubes.SHAPES[mask][i];
                         if (!edgeIndices.containsKey(e)) {
-                            float isoVal0 = gridWeights[x+e.offset.x][y+e.offset.y][z+e.offset.z];
-                            float isoVal1 = gridWeights[x+e.offset.x+e.direction.x][y+e.offset.y+e.direction.y][z+e.offset.z+e.direction.z];
+                            float isoVal0 = density.get(x+e.offset.x, y+e.offset.y, z+e.offset.z);
+                            float isoVal1 = density.get(x+e.offset.x+e.direction.x, y+e.offset.y+e.direction.y, z+e.offset.z+e.direction.z);
                             Vector3f interp_ofs = e.GetInterpolatedPosition(isoLevel, isoVal0, isoVal1);
                             Vector3f pos = new Vector3f(x, y, z).add(interp_ofs);
                             edgeIndices.put(e, verts.size()); //Associate this vertex's index to the edge type
@@ -164,38 +939,12 @@ public class Terrain {
         }
 
 
-        //TODO: Replace this code with a more convenient set of methods in Mesh
-        //Convert the data into primitive arrays to be passed into OpenGL
-        float[] pData = new float[verts.size() * 3];
-        int pNext = 0;
-        float[] cData = new float[verts.size() * 3];
-        int cNext = 0;
-        float[] nData = new float[verts.size() * 3];
-        int nNext = 0;
-        for (int i = 0; i < verts.size(); ++i){
-            Vertex v = verts.get(i);
-            pData[pNext++] = v.position.x;
-            pData[pNext++] = v.position.y;
-            pData[pNext++] = v.position.z;
-            cData[cNext++] = v.color.x;
-            cData[cNext++] = v.color.y;
-            cData[cNext++] = v.color.z;
-            nData[nNext++] = v.normal.x;
-            nData[nNext++] = v.normal.y;
-            nData[nNext++] = v.normal.z;
-        }
-        int[] iData = new int[indices.size()];
-        int iNext = 0;
+        for (Vertex v : verts) {
+            out.addVertex(v.position.x, v.position.y, v.position.z, v.color.x, v.color.y, v.color.z);
+            out.addNormal(out.getVertexCount() - 1, v.normal.x, v.normal.y, v.normal.z);
+        }
         for (int i = 0; i < indices.size(); ++i) {
-            iData[iNext++] = indices.get(i);
+            out.addIndex(indices.get(i));
         }
-
-        mesh.setVertexPositions(pData);
-        mesh.setColors(cData);
-        mesh.setNormals(nData);
-        mesh.setIndices(iData);
-
-        long methodTime = System.currentTimeMillis() - timerStart;
-        System.out.printf("Chunk generation took %dms.", methodTime);
     }
 }
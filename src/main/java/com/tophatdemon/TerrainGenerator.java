@@ -0,0 +1,98 @@
+package com.tophatdemon;
+
+/**
+ * Fills chunk grids from a world seed. The weights of a chunk only depend on the seed, the noise scale
+ * and the chunk's position, so chunks can be generated in any order, on any thread, and regenerated
+ * later with identical results. The generator holds no mutable state and can be shared between threads.
+**/
+public class TerrainGenerator {
+    protected final long seed;
+    protected final int chunkSize;
+    protected final float noiseScale;
+    //Where in the noise field the world lies, derived from the seed
+    protected final float noiseOffset;
+    //Shape of the terrain, or null for a single octave of noise
+    protected final DensityFunction densityFunction;
+
+    /**
+     * @param chunkSize Number of grid cells along each side of a chunk
+     * @param noiseScale The noise frequency per grid cell
+    **/
+    public TerrainGenerator(long seed, int chunkSize, float noiseScale) {
+        this(seed, chunkSize, noiseScale, null);
+    }
+
+    /**
+     * @param densityFunction Shape of the terrain in global grid coordinates, or null for a single octave of noise.
+     *                        It should take its own noise offsets from the seed, e.g. with DensityFunctions.seedOffset().
+    **/
+    public TerrainGenerator(long seed, int chunkSize, float noiseScale, DensityFunction densityFunction) {
+        this.seed = seed;
+        this.chunkSize = chunkSize;
+        this.noiseScale = noiseScale;
+        this.densityFunction = densityFunction;
+        //24 bits of the mixed seed spread the offset over [0, 100) in steps a float can hold exactly
+        noiseOffset = (mix(seed) >>> 40) * 0x1.0p-24f * 100.0f;
+    }
+
+    public long GetSeed() {
+        return seed;
+    }
+
+    public float GetNoiseScale() {
+        return noiseScale;
+    }
+
+    /**
+     * Returns a copy of this generator with another noise scale
+    **/
+    public TerrainGenerator WithNoiseScale(float scale) {
+        return new TerrainGenerator(seed, chunkSize, scale, densityFunction);
+    }
+
+    /**
+     * Returns a copy of this generator that shapes the terrain with a density function
+    **/
+    public TerrainGenerator WithDensityFunction(DensityFunction function) {
+        return new TerrainGenerator(seed, chunkSize, noiseScale, function);
+    }
+
+    /**
+     * Fills the grid of chunk (cx, cy, cz) at the given level of detail. The terrain's grid must have
+     * chunkSize >> lod cells along each side.
+    **/
+    public void Generate(Terrain terrain, int cx, int cy, int cz, int lod) {
+        if (densityFunction != null) {
+            terrain.SetDensityFunction(densityFunction, cx * chunkSize, cy * chunkSize, cz * chunkSize, 1 << lod);
+            return;
+        }
+        terrain.SetPerlinNoiseWeights(noiseScale, cx * chunkSize, cy * chunkSize, cz * chunkSize, noiseOffset, 1 << lod);
+    }
+
+    /**
+     * Sets where the halo around a grid that was filled some other way, such as from a store, comes from:
+     * the same samples Generate() would give the corners next to it
+    **/
+    public void GenerateHalo(Terrain terrain, int cx, int cy, int cz, int lod) {
+        if (densityFunction != null) {
+            terrain.SetDensityFunctionHalo(densityFunction, cx * chunkSize, cy * chunkSize, cz * chunkSize, 1 << lod);
+            return;
+        }
+        terrain.SetPerlinNoiseHalo(noiseScale, cx * chunkSize, cy * chunkSize, cz * chunkSize, noiseOffset, 1 << lod);
+    }
+
+    /**
+     * A seed for anything random placed in chunk (cx, cy, cz), unique to the chunk and the world seed
+    **/
+    public long ChunkSeed(int cx, int cy, int cz) {
+        return mix(mix(mix(seed ^ cx) ^ cy) ^ cz);
+    }
+
+    //SplitMix64 finalizer: a cheap bijective mix where every input bit affects every output bit
+    static long mix(long z) {
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,311 @@
+package com.tophatdemon;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+import org.joml.Matrix4f;
+import org.joml.Vector3f;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.system.MemoryUtil;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Draws every chunk mesh out of one shared vertex buffer and one shared index buffer, with a single
+ * glMultiDrawElementsBaseVertex per index type each frame.
+ * Vertices are allocated in pages of PAGE_VERTICES, and every page belongs to exactly one chunk, so the
+ * vertex shader looks up the chunk's origin in a page table (a buffer texture) from gl_VertexID alone
+ * instead of needing a uniform per chunk. Must only be used from the GL thread.
+**/
+public class TerrainRenderer implements AutoCloseable {
+    public static final int PAGE_SHIFT = 8;
+    public static final int PAGE_VERTICES = 1 << PAGE_SHIFT;
+    //Indices are allocated in blocks of this many bytes, which keeps both 16 and 32-bit ranges aligned
+    protected static final int INDEX_BLOCK_BYTES = 1024;
+    protected static final VertexFormat FORMAT = VertexFormat.PACKED_POSITION_NORMAL;
+    //Floats per page table entry: origin x, y, z and the position scale
+    private static final int PAGE_ENTRY_FLOATS = 4;
+
+    /**
+     * A chunk's share of the buffers
+    **/
+    static class Slot {
+        int firstPage;
+        int pageCount;
+        int firstIndexBlock;
+        int indexBlockCount;
+        int indexCount;
+        int indexType;
+    }
+
+    //Size of the cube every chunk's positions are quantized over
+    protected final float chunkExtent;
+    protected final Shader shader;
+    protected final RangeAllocator pages;
+    protected final RangeAllocator indexBlocks;
+    protected float[] pageTable;
+
+    protected int vertexArrayObject;
+    protected int vertexBuffer;
+    protected int indexBuffer;
+    protected int pageTableBuffer;
+    protected int pageTableTexture;
+
+    protected final Vector3f color = new Vector3f(1.0f, 1.0f, 1.0f);
+    protected final Vector3f ambientLight = new Vector3f(0.25f, 0.25f, 0.25f);
+    protected final Vector3f sunDirection = new Vector3f(0.0f, 1.0f, 0.0f);
+
+    //Draw parameters, refilled every frame
+    private IntBuffer drawCounts;
+    private IntBuffer drawBaseVertices;
+    private PointerBuffer drawOffsets;
+    private int drawCalls;
+    private int drawnChunks;
+
+    /**
+     * @param chunkExtent World-space size of a chunk. Every uploaded mesh must lie within the cube from 0 to this size.
+    **/
+    public TerrainRenderer(float chunkExtent) {
+        this.chunkExtent = chunkExtent;
+        shader = Shader.LoadFromFile("shaders/terrain.vert", "shaders/default.frag");
+        shader.bind();
+        try {
+            shader.setUniform(Shader.Uniform.CHUNK_PAGES, 0);
+            shader.setUniform(Shader.Uniform.PAGE_SHIFT, PAGE_SHIFT);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+
+        pages = new RangeAllocator(1024);
+        indexBlocks = new RangeAllocator(4096);
+        pageTable = new float[pages.getCapacity() * PAGE_ENTRY_FLOATS];
+
+        vertexArrayObject = glGenVertexArrays();
+        vertexBuffer = createBuffer((long) pages.getCapacity() * PAGE_VERTICES * FORMAT.getStride());
+        indexBuffer = createBuffer((long) indexBlocks.getCapacity() * INDEX_BLOCK_BYTES);
+        bindVertexArray();
+
+        pageTableBuffer = glGenBuffers();
+        glBindBuffer(GL_TEXTURE_BUFFER, pageTableBuffer);
+        glBufferData(GL_TEXTURE_BUFFER, pageTable, GL_DYNAMIC_DRAW);
+        pageTableTexture = glGenTextures();
+        glBindTexture(GL_TEXTURE_BUFFER, pageTableTexture);
+        glTexBuffer(GL_TEXTURE_BUFFER, GL_RGBA32F, pageTableBuffer);
+
+        drawCounts = MemoryUtil.memAllocInt(256);
+        drawBaseVertices = MemoryUtil.memAllocInt(256);
+        drawOffsets = MemoryUtil.memAllocPointer(256);
+    }
+
+    private static int createBuffer(long size) {
+        int buffer = glGenBuffers();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, buffer);
+        glBufferData(GL_COPY_WRITE_BUFFER, size, GL_STATIC_DRAW);
+        return buffer;
+    }
+
+    //Points the attributes at the current vertex buffer and attaches the current index buffer
+    private void bindVertexArray() {
+        glBindVertexArray(vertexArrayObject);
+        glBindBuffer(GL_ARRAY_BUFFER, vertexBuffer);
+        for (VertexFormat.Attribute attr : FORMAT.getAttributes()) {
+            glVertexAttribPointer(attr.index, attr.encoding.components, attr.encoding.glType,
+                attr.encoding.normalized, FORMAT.getStride(), attr.offset);
+            glEnableVertexAttribArray(attr.index);
+        }
+        glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    }
+
+    /**
+     * Copies the old buffer into a new, bigger one and deletes the old one
+    **/
+    private static int growBuffer(int oldBuffer, long oldSize, long newSize) {
+        int buffer = createBuffer(newSize);
+        glBindBuffer(GL_COPY_READ_BUFFER, oldBuffer);
+        glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_COPY_WRITE_BUFFER, 0, 0, oldSize);
+        glDeleteBuffers(oldBuffer);
+        return buffer;
+    }
+
+    private int allocatePages(int count) {
+        int first = pages.allocate(count);
+        if (first >= 0) return first;
+
+        int oldPages = pages.getCapacity();
+        int newPages = Math.max(oldPages * 2, oldPages + count);
+        long pageBytes = (long) PAGE_VERTICES * FORMAT.getStride();
+        vertexBuffer = growBuffer(vertexBuffer, oldPages * pageBytes, newPages * pageBytes);
+        pages.grow(newPages);
+        pageTable = Arrays.copyOf(pageTable, newPages * PAGE_ENTRY_FLOATS);
+        //Respecifying the storage keeps the buffer attached to the texture
+        glBindBuffer(GL_TEXTURE_BUFFER, pageTableBuffer);
+        glBufferData(GL_TEXTURE_BUFFER, pageTable, GL_DYNAMIC_DRAW);
+        bindVertexArray();
+        return pages.allocate(count);
+    }
+
+    private int allocateIndexBlocks(int count) {
+        int first = indexBlocks.allocate(count);
+        if (first >= 0) return first;
+
+        int oldBlocks = indexBlocks.getCapacity();
+        int newBlocks = Math.max(oldBlocks * 2, oldBlocks + count);
+        indexBuffer = growBuffer(indexBuffer, (long) oldBlocks * INDEX_BLOCK_BYTES, (long) newBlocks * INDEX_BLOCK_BYTES);
+        indexBlocks.grow(newBlocks);
+        bindVertexArray();
+        return indexBlocks.allocate(count);
+    }
+
+    /**
+     * Replaces the chunk's mesh with the data. Positions must be relative to the chunk origin.
+     * Formats without colors give the whole terrain the color of the first vertex.
+    **/
+    public void Upload(Chunk chunk, MeshData data) {
+        Remove(chunk);
+        if (data.getIndexCount() == 0) return;
+
+        Slot slot = new Slot();
+        int vertexCount = data.getVertexCount();
+        slot.pageCount = (vertexCount + PAGE_VERTICES - 1) >> PAGE_SHIFT;
+        slot.firstPage = allocatePages(slot.pageCount);
+        slot.indexType = data.hasWideIndices() ? GL_UNSIGNED_INT : GL_UNSIGNED_SHORT;
+        int indexBytes = data.getIndexCount() * (data.hasWideIndices() ? Integer.BYTES : Short.BYTES);
+        slot.indexBlockCount = (indexBytes + INDEX_BLOCK_BYTES - 1) / INDEX_BLOCK_BYTES;
+        slot.firstIndexBlock = allocateIndexBlocks(slot.indexBlockCount);
+        slot.indexCount = data.getIndexCount();
+
+        ByteBuffer buffer = Mesh.getStagingBuffer(vertexCount * FORMAT.getStride());
+        FORMAT.write(data, buffer, 0.0f, 0.0f, 0.0f, chunkExtent);
+        buffer.flip();
+        glBindBuffer(GL_COPY_WRITE_BUFFER, vertexBuffer);
+        glBufferSubData(GL_COPY_WRITE_BUFFER, (long) slot.firstPage * PAGE_VERTICES * FORMAT.getStride(), buffer);
+
+        buffer = Mesh.getStagingBuffer(indexBytes);
+        if (data.hasWideIndices()) {
+            buffer.asIntBuffer().put(data.getIndices(), 0, data.getIndexCount());
+        } else {
+            buffer.asShortBuffer().put(data.getShortIndices(), 0, data.getIndexCount());
+        }
+        glBindBuffer(GL_COPY_WRITE_BUFFER, indexBuffer);
+        glBufferSubData(GL_COPY_WRITE_BUFFER, (long) slot.firstIndexBlock * INDEX_BLOCK_BYTES, buffer);
+
+        int start = slot.firstPage * PAGE_ENTRY_FLOATS, end = start + slot.pageCount * PAGE_ENTRY_FLOATS;
+        for (int i = start; i < end; i += PAGE_ENTRY_FLOATS) {
+            pageTable[i] = chunk.origin.x;
+            pageTable[i+1] = chunk.origin.y;
+            pageTable[i+2] = chunk.origin.z;
+            pageTable[i+3] = chunkExtent;
+        }
+        buffer = Mesh.getStagingBuffer((end - start) * Float.BYTES);
+        buffer.asFloatBuffer().put(pageTable, start, end - start);
+        glBindBuffer(GL_TEXTURE_BUFFER, pageTableBuffer);
+        glBufferSubData(GL_TEXTURE_BUFFER, (long) start * Float.BYTES, buffer);
+
+        if (!FORMAT.hasAttribute(Mesh.ATTRIBUTE_INDEX_COLOR)) {
+            float[] colors = data.getColors();
+            color.set(colors[0], colors[1], colors[2]);
+        }
+        chunk.meshSlot = slot;
+    }
+
+    /**
+     * Frees the chunk's share of the buffers
+    **/
+    public void Remove(Chunk chunk) {
+        Slot slot = chunk.meshSlot;
+        if (slot == null) return;
+        pages.free(slot.firstPage, slot.pageCount);
+        indexBlocks.free(slot.firstIndexBlock, slot.indexBlockCount);
+        chunk.meshSlot = null;
+    }
+
+    public void SetLighting(Vector3f ambientLight, Vector3f sunDirection) {
+        this.ambientLight.set(ambientLight);
+        this.sunDirection.set(sunDirection);
+    }
+
+    /**
+     * Draws the given chunks. Uniforms are set once for the whole frame.
+    **/
+    public void Render(Iterable<Chunk> chunks, Matrix4f view, Matrix4f projection) {
+        drawCalls = 0;
+        drawnChunks = 0;
+
+        shader.bind();
+        try {
+            shader.setUniform(Shader.Uniform.VIEW_MATRIX, view);
+            shader.setUniform(Shader.Uniform.PROJECTION_MATRIX, projection);
+            shader.setUniform(Shader.Uniform.AMBIENT_LIGHT, ambientLight);
+            shader.setUniform(Shader.Uniform.SUN_DIRECTION, sunDirection);
+        } catch (Exception e) {
+            e.printStackTrace(System.err);
+        }
+        glActiveTexture(GL_TEXTURE0);
+        glBindTexture(GL_TEXTURE_BUFFER, pageTableTexture);
+        glBindVertexArray(vertexArrayObject);
+        glVertexAttrib3f(Mesh.ATTRIBUTE_INDEX_COLOR, color.x, color.y, color.z);
+
+        //Multi-draws can't mix index types, so the rare chunks with 32-bit indices get a draw of their own
+        drawBatch(chunks, GL_UNSIGNED_SHORT);
+        drawBatch(chunks, GL_UNSIGNED_INT);
+    }
+
+    private void drawBatch(Iterable<Chunk> chunks, int indexType) {
+        drawCounts.clear();
+        drawBaseVertices.clear();
+        drawOffsets.clear();
+        for (Chunk chunk : chunks) {
+            Slot slot = chunk.meshSlot;
+            if (slot == null || slot.indexType != indexType) continue;
+            if (!drawCounts.hasRemaining()) growDrawBuffers();
+            drawCounts.put(slot.indexCount);
+            drawBaseVertices.put(slot.firstPage << PAGE_SHIFT);
+            drawOffsets.put((long) slot.firstIndexBlock * INDEX_BLOCK_BYTES);
+        }
+        if (drawCounts.position() == 0) return;
+        drawnChunks += drawCounts.position();
+        ++drawCalls;
+        drawCounts.flip();
+        drawBaseVertices.flip();
+        drawOffsets.flip();
+        glMultiDrawElementsBaseVertex(GL_TRIANGLES, drawCounts, indexType, drawOffsets, drawBaseVertices);
+    }
+
+    private void growDrawBuffers() {
+        int count = drawCounts.position(), capacity = drawCounts.capacity() * 2;
+        drawCounts = MemoryUtil.memRealloc(drawCounts, capacity);
+        drawBaseVertices = MemoryUtil.memRealloc(drawBaseVertices, capacity);
+        drawOffsets = MemoryUtil.memRealloc(drawOffsets, capacity);
+        drawCounts.clear().position(count);
+        drawBaseVertices.clear().position(count);
+        drawOffsets.clear().position(count);
+    }
+
+    /**
+     * Number of multi-draw calls issued by the last Render()
+    **/
+    public int GetDrawCalls() {
+        return drawCalls;
+    }
+
+    /**
+     * Number of chunks drawn by the last Render()
+    **/
+    public int GetDrawnChunks() {
+        return drawnChunks;
+    }
+
+    @Override
+    public void close() {
+        shader.close();
+        if (vertexArrayObject > 0) glDeleteVertexArrays(vertexArrayObject);
+        if (vertexBuffer > 0) glDeleteBuffers(vertexBuffer);
+        if (indexBuffer > 0) glDeleteBuffers(indexBuffer);
+        if (pageTableTexture > 0) glDeleteTextures(pageTableTexture);
+        if (pageTableBuffer > 0) glDeleteBuffers(pageTableBuffer);
+        MemoryUtil.memFree(drawCounts);
+        MemoryUtil.memFree(drawBaseVertices);
+        MemoryUtil.memFree(drawOffsets);
+    }
+}
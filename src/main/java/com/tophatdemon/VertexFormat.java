@@ -0,0 +1,172 @@
+package com.tophatdemon;
+
+import java.nio.ByteBuffer;
+
+import static org.lwjgl.opengl.GL33.*;
+
+/**
+ * Layout of an interleaved vertex buffer: which attributes it holds, how each one is encoded and where.
+ * Quantized positions are stored as unsigned normalized values over a range given at encode time, so the
+ * shader sees them in [0, 1] and has to scale them back, as TerrainRenderer does with each page's position scale.
+**/
+public class VertexFormat {
+    public static enum Encoding {
+        //Three 32-bit floats
+        FLOAT3(GL_FLOAT, 3, false, 12) {
+            @Override
+            void put(ByteBuffer dest, float x, float y, float z) {
+                dest.putFloat(x).putFloat(y).putFloat(z);
+            }
+        },
+        //Three 16-bit unsigned normalized values, padded to 8 bytes to keep attributes 4-byte aligned. Expects values in [0, 1].
+        UNORM16(GL_UNSIGNED_SHORT, 3, true, 8) {
+            @Override
+            void put(ByteBuffer dest, float x, float y, float z) {
+                dest.putShort(unorm(x, 0xFFFF)).putShort(unorm(y, 0xFFFF)).putShort(unorm(z, 0xFFFF)).putShort((short) 0xFFFF);
+            }
+        },
+        //Three 8-bit unsigned normalized values, padded to 4 bytes. Expects values in [0, 1].
+        UNORM8(GL_UNSIGNED_BYTE, 3, true, 4) {
+            @Override
+            void put(ByteBuffer dest, float x, float y, float z) {
+                dest.put((byte) unorm(x, 0xFF)).put((byte) unorm(y, 0xFF)).put((byte) unorm(z, 0xFF)).put((byte) 0xFF);
+            }
+        },
+        //Three 10-bit signed normalized values packed in one int, for unit vectors like normals
+        SNORM_10_10_10_2(GL_INT_2_10_10_10_REV, 4, true, 4) {
+            @Override
+            void put(ByteBuffer dest, float x, float y, float z) {
+                dest.putInt((snorm10(x)) | (snorm10(y) << 10) | (snorm10(z) << 20));
+            }
+        },
+        ;
+
+        public final int glType;
+        //Component count passed to glVertexAttribPointer
+        public final int components;
+        public final boolean normalized;
+        public final int byteSize;
+
+        private Encoding(int glType, int components, boolean normalized, int byteSize) {
+            this.glType = glType;
+            this.components = components;
+            this.normalized = normalized;
+            this.byteSize = byteSize;
+        }
+
+        abstract void put(ByteBuffer dest, float x, float y, float z);
+
+        private static short unorm(float value, int max) {
+            return (short) Math.round(Math.max(0.0f, Math.min(1.0f, value)) * max);
+        }
+
+        private static int snorm10(float value) {
+            return Math.round(Math.max(-1.0f, Math.min(1.0f, value)) * 511.0f) & 0x3FF;
+        }
+    }
+
+    public static class Attribute {
+        //Shader attribute location, one of Mesh.ATTRIBUTE_INDEX_*
+        public final int index;
+        public final Encoding encoding;
+        public final int offset;
+
+        private Attribute(int index, Encoding encoding, int offset) {
+            this.index = index;
+            this.encoding = encoding;
+            this.offset = offset;
+        }
+    }
+
+    //36 bytes per vertex, the same data the separate float buffers held
+    public static final VertexFormat FLOAT_POSITION_COLOR_NORMAL = new VertexFormat(
+        new int[] { Mesh.ATTRIBUTE_INDEX_POS, Mesh.ATTRIBUTE_INDEX_COLOR, Mesh.ATTRIBUTE_INDEX_NORMAL },
+        new Encoding[] { Encoding.FLOAT3, Encoding.FLOAT3, Encoding.FLOAT3 });
+    //16 bytes per vertex
+    public static final VertexFormat PACKED_POSITION_COLOR_NORMAL = new VertexFormat(
+        new int[] { Mesh.ATTRIBUTE_INDEX_POS, Mesh.ATTRIBUTE_INDEX_COLOR, Mesh.ATTRIBUTE_INDEX_NORMAL },
+        new Encoding[] { Encoding.UNORM16, Encoding.UNORM8, Encoding.SNORM_10_10_10_2 });
+    //12 bytes per vertex, for meshes with a single color that is set on the mesh instead
+    public static final VertexFormat PACKED_POSITION_NORMAL = new VertexFormat(
+        new int[] { Mesh.ATTRIBUTE_INDEX_POS, Mesh.ATTRIBUTE_INDEX_NORMAL },
+        new Encoding[] { Encoding.UNORM16, Encoding.SNORM_10_10_10_2 });
+
+    protected final Attribute[] attributes;
+    protected final int stride;
+    //Bit i is set if the format holds attribute location i
+    protected final int attributeMask;
+
+    /**
+     * @param indices Attribute locations, in the order they are laid out in each vertex
+     * @param encodings Encoding of each attribute
+    **/
+    public VertexFormat(int[] indices, Encoding[] encodings) {
+        if (indices.length != encodings.length) {
+            throw new IllegalArgumentException("Every vertex attribute needs an encoding");
+        }
+        attributes = new Attribute[indices.length];
+        int offset = 0, mask = 0;
+        for (int i = 0; i < attributes.length; ++i) {
+            int index = indices[i];
+            Encoding encoding = encodings[i];
+            attributes[i] = new Attribute(index, encoding, offset);
+            offset += encoding.byteSize;
+            mask |= 1 << index;
+        }
+        stride = offset;
+        attributeMask = mask;
+    }
+
+    public Attribute[] getAttributes() {
+        return attributes;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getAttributeMask() {
+        return attributeMask;
+    }
+
+    public boolean hasAttribute(int index) {
+        return (attributeMask & (1 << index)) != 0;
+    }
+
+    /**
+     * Whether positions are stored relative to a range, and so need a decode transform when drawn
+    **/
+    public boolean hasQuantizedPositions() {
+        for (Attribute attr : attributes) {
+            if (attr.index == Mesh.ATTRIBUTE_INDEX_POS && attr.encoding.normalized) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Writes the vertices of the data into dest in this format, starting at its current position.
+     * dest must be in native byte order, as GL reads it.
+     * Quantized positions are stored as (position - positionOffset) / positionScale.
+    **/
+    public void write(MeshData data, ByteBuffer dest, float offsetX, float offsetY, float offsetZ, float positionScale) {
+        float[] positions = data.getPositions(), colors = data.getColors(), normals = data.getNormals();
+        float invScale = 1.0f / positionScale;
+        for (int v = 0; v < data.getVertexCount(); ++v) {
+            int i = v * 3;
+            for (Attribute attr : attributes) {
+                if (attr.index == Mesh.ATTRIBUTE_INDEX_POS) {
+                    if (attr.encoding.normalized) {
+                        attr.encoding.put(dest, (positions[i] - offsetX) * invScale,
+                            (positions[i+1] - offsetY) * invScale, (positions[i+2] - offsetZ) * invScale);
+                    } else {
+                        attr.encoding.put(dest, positions[i], positions[i+1], positions[i+2]);
+                    }
+                } else if (attr.index == Mesh.ATTRIBUTE_INDEX_COLOR) {
+                    attr.encoding.put(dest, colors[i], colors[i+1], colors[i+2]);
+                } else if (attr.index == Mesh.ATTRIBUTE_INDEX_NORMAL) {
+                    attr.encoding.put(dest, normals[i], normals[i+1], normals[i+2]);
+                }
+            }
+        }
+    }
+}
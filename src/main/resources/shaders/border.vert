@@ -0,0 +1,26 @@
+#version 330
+
+//One vertex per sample on the six faces of the cube shaped grid density.vert filled, to be captured with
+//transform feedback. Faces are in the order -x, +x, -y, +y, -z, +z, each with its samples ordered like the grid's.
+uniform ivec3 uGridSize;
+//The samples, with x varying fastest
+uniform samplerBuffer uDensity;
+
+out float weight;
+
+void main() {
+    int size = uGridSize.x;
+    int face = gl_VertexID / (size * size);
+    int i = gl_VertexID % (size * size);
+    int u = i % size;
+    int v = i / size;
+    int side = (face % 2 == 0) ? 0 : size - 1;
+
+    ivec3 coord;
+    if (face < 2) coord = ivec3(side, u, v);
+    else if (face < 4) coord = ivec3(u, side, v);
+    else coord = ivec3(u, v, side);
+
+    weight = texelFetch(uDensity, coord.x + (coord.y + coord.z * uGridSize.y) * uGridSize.x).r;
+    gl_Position = vec4(0.0);
+}
@@ -0,0 +1,58 @@
+#version 330
+
+//One vertex per run of up to 32 cells along a row of the grid density.vert filled, to be captured with
+//transform feedback. Marks the cells of the run the surface passes through, and sums the run's samples.
+uniform ivec3 uGridSize;
+uniform float uIsoLevel;
+//The samples, with x varying fastest
+uniform samplerBuffer uDensity;
+
+//Bit i is set if cell start + i has corners on both sides of the iso level
+flat out uint cellMask;
+out float weightSum;
+
+//Which of the four samples at (x, y..y+1, z..z+1) are solid, as bits 0 to 3
+uint solidColumn(int x, int y, int z) {
+    int row = uGridSize.x, slice = uGridSize.x * uGridSize.y;
+    int i = x + y * row + z * slice;
+    uint bits = 0u;
+    if (texelFetch(uDensity, i).r >= uIsoLevel) bits |= 1u;
+    if (texelFetch(uDensity, i + row).r >= uIsoLevel) bits |= 2u;
+    if (texelFetch(uDensity, i + slice).r >= uIsoLevel) bits |= 4u;
+    if (texelFetch(uDensity, i + row + slice).r >= uIsoLevel) bits |= 8u;
+    return bits;
+}
+
+void main() {
+    int cellsX = uGridSize.x - 1;
+    int runs = (cellsX + 31) / 32;
+    int run = gl_VertexID % runs;
+    int row = gl_VertexID / runs;
+    int y = row % uGridSize.y;
+    int z = row / uGridSize.y;
+    int start = run * 32;
+
+    //Every sample is counted in exactly one run, the last run of a row taking the sample past its last cell
+    int end = (run == runs - 1) ? uGridSize.x : start + 32;
+    float sum = 0.0;
+    for (int x = start; x < end; ++x) {
+        sum += texelFetch(uDensity, x + row * uGridSize.x).r;
+    }
+
+    //Rows of samples along the top and back faces start no cells
+    uint mask = 0u;
+    if (y < uGridSize.y - 1 && z < uGridSize.z - 1) {
+        int cellEnd = min(start + 32, cellsX);
+        uint previous = solidColumn(start, y, z);
+        for (int x = start; x < cellEnd; ++x) {
+            uint next = solidColumn(x + 1, y, z);
+            uint corners = previous | (next << 4);
+            if (corners != 0u && corners != 255u) mask |= 1u << uint(x - start);
+            previous = next;
+        }
+    }
+
+    cellMask = mask;
+    weightSum = sum;
+    gl_Position = vec4(0.0);
+}
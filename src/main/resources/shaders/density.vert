@@ -0,0 +1,104 @@
+#version 330
+
+//Evaluates one density sample per vertex, to be captured with transform feedback.
+//The same simplex noise as SimplexNoiseBatch.fill(), with the same operations in the same order,
+//though the GPU may round differently so samples can differ from the CPU's in their last bits.
+uniform ivec3 uGridSize;
+uniform ivec3 uGridOrigin;
+uniform int uGridStride;
+uniform float uNoiseOffset;
+uniform float uNoiseScale;
+
+out float weight;
+
+const float F3 = 0.33333334;
+const float G3 = 0.16666667;
+
+//Ken Perlin's permutation, the same one SimplexNoiseBatch uses
+const int P[256] = int[256](
+    151, 160, 137, 91, 90, 15, 131, 13, 201, 95, 96, 53, 194, 233, 7, 225,
+    140, 36, 103, 30, 69, 142, 8, 99, 37, 240, 21, 10, 23, 190, 6, 148,
+    247, 120, 234, 75, 0, 26, 197, 62, 94, 252, 219, 203, 117, 35, 11, 32,
+    57, 177, 33, 88, 237, 149, 56, 87, 174, 20, 125, 136, 171, 168, 68, 175,
+    74, 165, 71, 134, 139, 48, 27, 166, 77, 146, 158, 231, 83, 111, 229, 122,
+    60, 211, 133, 230, 220, 105, 92, 41, 55, 46, 245, 40, 244, 102, 143, 54,
+    65, 25, 63, 161, 1, 216, 80, 73, 209, 76, 132, 187, 208, 89, 18, 169,
+    200, 196, 135, 130, 116, 188, 159, 86, 164, 100, 109, 198, 173, 186, 3, 64,
+    52, 217, 226, 250, 124, 123, 5, 202, 38, 147, 118, 126, 255, 82, 85, 212,
+    207, 206, 59, 227, 47, 16, 58, 17, 182, 189, 28, 42, 223, 183, 170, 213,
+    119, 248, 152, 2, 44, 154, 163, 70, 221, 153, 101, 155, 167, 43, 172, 9,
+    129, 22, 39, 253, 19, 98, 108, 110, 79, 113, 224, 232, 178, 185, 112, 104,
+    218, 246, 97, 228, 251, 34, 242, 193, 238, 210, 144, 12, 191, 179, 162, 241,
+    81, 51, 145, 235, 249, 14, 239, 107, 49, 192, 214, 31, 181, 199, 106, 157,
+    184, 84, 204, 176, 115, 121, 50, 45, 127, 4, 150, 254, 138, 236, 205, 93,
+    222, 114, 67, 29, 24, 72, 243, 141, 128, 195, 78, 66, 215, 61, 156, 180
+);
+
+//The 12 gradients towards the edges of a cube
+const vec3 GRADIENTS[12] = vec3[12](
+    vec3(1, 1, 0), vec3(-1, 1, 0), vec3(1, -1, 0), vec3(-1, -1, 0),
+    vec3(1, 0, 1), vec3(-1, 0, 1), vec3(1, 0, -1), vec3(-1, 0, -1),
+    vec3(0, 1, 1), vec3(0, -1, 1), vec3(0, 1, -1), vec3(0, -1, -1)
+);
+
+int perm(int i) {
+    return P[i & 255];
+}
+
+//Contribution of one simplex corner
+float corner(int gi, vec3 p) {
+    float t = 0.6 - p.x * p.x - p.y * p.y - p.z * p.z;
+    if (t < 0.0) return 0.0;
+    t *= t;
+    vec3 g = GRADIENTS[gi];
+    return t * t * (g.x * p.x + g.y * p.y + g.z * p.z);
+}
+
+float noise(vec3 p) {
+    //Skew the input space to find the simplex cell
+    float s = (p.x + p.y + p.z) * F3;
+    ivec3 cell = ivec3(floor(p + s));
+    float t = float(cell.x + cell.y + cell.z) * G3;
+    vec3 p0 = p - (vec3(cell) - t);
+
+    //Offsets of the second and third corners of the simplex the point is in
+    ivec3 o1, o2;
+    if (p0.x >= p0.y) {
+        if (p0.y >= p0.z) {
+            o1 = ivec3(1, 0, 0); o2 = ivec3(1, 1, 0);
+        } else if (p0.x >= p0.z) {
+            o1 = ivec3(1, 0, 0); o2 = ivec3(1, 0, 1);
+        } else {
+            o1 = ivec3(0, 0, 1); o2 = ivec3(1, 0, 1);
+        }
+    } else {
+        if (p0.y < p0.z) {
+            o1 = ivec3(0, 0, 1); o2 = ivec3(0, 1, 1);
+        } else if (p0.x < p0.z) {
+            o1 = ivec3(0, 1, 0); o2 = ivec3(0, 1, 1);
+        } else {
+            o1 = ivec3(0, 1, 0); o2 = ivec3(1, 1, 0);
+        }
+    }
+    vec3 p1 = p0 - vec3(o1) + G3;
+    vec3 p2 = p0 - vec3(o2) + F3;
+    vec3 p3 = p0 - 1.0 + 0.5;
+
+    ivec3 h = cell & 255;
+    int gi0 = perm(h.x + perm(h.y + perm(h.z))) % 12;
+    int gi1 = perm(h.x + o1.x + perm(h.y + o1.y + perm(h.z + o1.z))) % 12;
+    int gi2 = perm(h.x + o2.x + perm(h.y + o2.y + perm(h.z + o2.z))) % 12;
+    int gi3 = perm(h.x + 1 + perm(h.y + 1 + perm(h.z + 1))) % 12;
+
+    return 32.0 * (corner(gi0, p0) + corner(gi1, p1) + corner(gi2, p2) + corner(gi3, p3));
+}
+
+void main() {
+    //Samples are numbered with x varying fastest, like DensityField
+    int x = gl_VertexID % uGridSize.x;
+    int y = (gl_VertexID / uGridSize.x) % uGridSize.y;
+    int z = gl_VertexID / (uGridSize.x * uGridSize.y);
+    vec3 p = (vec3(uGridOrigin + ivec3(x, y, z) * uGridStride) + uNoiseOffset) * uNoiseScale;
+    weight = (noise(p) + 1.0) / 2.0;
+    gl_Position = vec4(0.0);
+}
@@ -0,0 +1,23 @@
+#version 330
+
+layout (location=0) in vec3 position;
+layout (location=1) in vec3 color;
+layout (location=2) in vec3 normal;
+
+uniform mat4 uView;
+uniform mat4 uProjection;
+//One texel per page of vertices: the origin of the chunk that owns the page in xyz,
+//and the size its quantized positions are stored over in w
+uniform samplerBuffer uChunkPages;
+uniform int uPageShift;
+
+out vec3 vColor;
+out vec3 vNormal;
+
+void main() {
+    //gl_VertexID includes the base vertex of the draw, so it says which page this vertex is in
+    vec4 page = texelFetch(uChunkPages, gl_VertexID >> uPageShift);
+    vColor = color;
+    vNormal = normal;
+    gl_Position = uProjection * uView * vec4(page.xyz + position * page.w, 1.0);
+}
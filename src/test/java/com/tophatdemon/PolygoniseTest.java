@@ -0,0 +1,53 @@
+package com.tophatdemon;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that the polygonisation kernel produces exactly the same triangles as the original per-cell version
+**/
+public class PolygoniseTest {
+    private static final long[] SEEDS = { 1L, 42L, 0x5EEDL };
+    private static final int[] SIZES = { 8, 16, 33 };
+    private static final float[] ISO_LEVELS = { 0.3f, 0.5f, 0.7f };
+
+    @Test
+    public void kernelMatchesReference() {
+        MeshData kernel = new MeshData(), reference = new MeshData();
+        for (long seed : SEEDS) {
+            for (int size : SIZES) {
+                Terrain terrain = new Terrain(size, size, size, 1.0f);
+                new TerrainGenerator(seed, size, 0.1f).Generate(terrain, 1, -1, 2, 0);
+                for (float isoLevel : ISO_LEVELS) {
+                    for (boolean shared : new boolean[] { false, true }) {
+                        for (NormalMode mode : NormalMode.values()) {
+                            terrain.SetIsoLevel(isoLevel);
+                            terrain.SetSharedVertices(shared);
+                            terrain.SetNormalMode(mode);
+                            terrain.polygonise(kernel);
+                            terrain.polygoniseReference(reference);
+
+                            String message = "seed " + seed + ", size " + size + ", iso level " + isoLevel
+                                + (shared ? ", shared" : ", unshared") + ", " + mode;
+                            float[] expected = trianglePositions(reference);
+                            assertTrue("No surface for " + message, expected.length > 0);
+                            assertArrayEquals(message, expected, trianglePositions(kernel), 0.0f);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    //The three corner positions of every triangle, in order
+    private static float[] trianglePositions(MeshData data) {
+        float[] positions = data.getPositions();
+        float[] corners = new float[data.getIndexCount() * 3];
+        for (int i = 0; i < data.getIndexCount(); ++i) {
+            System.arraycopy(positions, data.getIndex(i) * 3, corners, i * 3, 3);
+        }
+        return corners;
+    }
+}
@@ -0,0 +1,58 @@
+package com.tophatdemon;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.joml.SimplexNoise;
+import org.junit.Test;
+
+/**
+ * Checks that SimplexNoiseBatch gives bit-for-bit the same values as JOML's SimplexNoise, so the terrain doesn't change
+**/
+public class SimplexNoiseBatchTest {
+    @Test
+    public void noiseMatchesJoml() {
+        Random random = new Random(7);
+        for (int i = 0; i < 1_000_000; ++i) {
+            //Mostly the range chunks sample, with some far out coordinates and exact lattice points
+            float range = (i % 10 == 0) ? 100000.0f : 1000.0f;
+            float x = (random.nextFloat() * 2.0f - 1.0f) * range;
+            float y = (random.nextFloat() * 2.0f - 1.0f) * range;
+            float z = (i % 7 == 0) ? Math.round(random.nextFloat() * 64.0f) : (random.nextFloat() * 2.0f - 1.0f) * range;
+            assertBitsEqual("noise(" + x + ", " + y + ", " + z + ")", SimplexNoise.noise(x, y, z), SimplexNoiseBatch.noise(x, y, z));
+        }
+    }
+
+    @Test
+    public void fillMatchesJoml() {
+        int[][] grids = {
+            { 17, 17, 17, 0, 0, 0, 1 },
+            { 33, 9, 5, -64, 32, -96, 1 },
+            { 9, 9, 9, 1024, -512, 256, 4 },
+        };
+        float[][] noiseSettings = { { 0.0f, 0.1f }, { 0.37f, 0.05f }, { 1234.5f, 0.013f } };
+        for (int[] g : grids) {
+            for (float[] settings : noiseSettings) {
+                int sizeX = g[0], sizeY = g[1], sizeZ = g[2], stride = g[6];
+                float offset = settings[0], scale = settings[1];
+                float[] values = new float[sizeX * sizeY * sizeZ];
+                SimplexNoiseBatch.fill(values, sizeX, sizeY, sizeZ, g[3], g[4], g[5], stride, offset, scale);
+                int i = 0;
+                for (int z = 0; z < sizeZ; ++z) {
+                    for (int y = 0; y < sizeY; ++y) {
+                        for (int x = 0; x < sizeX; ++x, ++i) {
+                            float expected = (SimplexNoise.noise((g[3] + x * stride + offset) * scale,
+                                (g[4] + y * stride + offset) * scale, (g[5] + z * stride + offset) * scale) + 1.0f) / 2.0f;
+                            assertBitsEqual("corner (" + x + ", " + y + ", " + z + ")", expected, values[i]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertBitsEqual(String message, float expected, float actual) {
+        assertEquals(message, Float.floatToRawIntBits(expected), Float.floatToRawIntBits(actual));
+    }
+}